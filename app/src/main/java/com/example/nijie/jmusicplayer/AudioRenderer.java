@@ -0,0 +1,594 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Audio render thread: consumes PCM from a {@link PcmRingBuffer} and writes it to the AudioTrack,
+ * so the blocking AudioTrack.write never runs on the decode thread.
+ *
+ * The renderer owns the AudioTrack, taken from and given back to an {@link AudioTrackPool}. For gapless playback the producer puts a {@link TrackInfo} marker
+ * in the ring where the next track starts: when its format matches the PCM simply keeps flowing into
+ * the same track, otherwise the track is played out and replaced. A {@link FormatChange} marker does the
+ * same when the decoder output format of the current track changes, without starting a new track.
+ *
+ * With the float pipeline each chunk is converted once to float, processed in float, and written as
+ * float (API 21+) or dithered back to 16 bit. When resampling to the device native rate is enabled the
+ * AudioTrack runs at that rate, tracks at other rates go through the float pipeline and a
+ * {@link Resampler}, and the clock counts frames at the output rate.
+ */
+public class AudioRenderer implements Runnable {
+    public final String LOG_TAG = "AudioRenderer";
+
+    // systrace section and counter tracks
+    private static final String TRACE_WRITE = "AudioRenderer.write";
+    private static final String TRACE_TRACK_FILL_MS = "AudioRenderer.trackFillMs";
+    private static final String TRACE_UNDERRUNS = "AudioRenderer.underruns";
+
+    // how long to park when there is nothing to do, the ring wakes us up earlier when it can
+    private static final long WAIT_US = 10000;
+    // how often the playback clock is re-anchored on the track position
+    private static final long CLOCK_UPDATE_NS = 200000000L;
+    // upper bound to wait for the track to play out before switching format
+    private static final long PLAYOUT_TIMEOUT_NS = 2000000000L;
+    // longest sleep while the track is full in the deep buffer mode, pause and seek wait for it
+    private static final long DEEP_SLEEP_US = 200000;
+
+    /**
+     * Told when the first frame of a track queued for gapless playback is handed to the AudioTrack
+     */
+    public interface TrackListener {
+        void onTrackStarted(TrackInfo track);
+    }
+
+    /**
+     * Ring marker: from there the PCM of the current track is in another format
+     */
+    public static class FormatChange {
+        public final TrackInfo track;
+
+        public FormatChange(TrackInfo track) {
+            this.track = track;
+        }
+    }
+
+    private AudioTrack mAudioTrack;
+    private TrackInfo mTrack;
+    private final PcmRingBuffer mRing;
+    private final PlayerStates mState;
+    private final PcmBufferPool mPool;
+    private final AudioTrackPool mTrackPool;
+    private final PlaybackClock mClock;
+    // decoder channels to AudioTrack channels
+    private final ChannelMixer mMixer = new ChannelMixer();
+
+    // float pipeline: working buffer, and dither for 16 bit output
+    private boolean mFloatPipeline = false;
+    private int mEncoding = AudioFormat.ENCODING_PCM_16BIT;
+    private float[] mWork = null;
+    private final FloatPcm mFloatPcm = new FloatPcm();
+
+    // resampling to the native output rate, and the output of that stage
+    private int mResampleQuality = Resampler.QUALITY_NONE;
+    private int mNativeRate = 0;
+    private int mOutputRate = 0;
+    private int mOutputChannels = 2;
+    private boolean mResampling = false;
+    private final Resampler mResampler = new Resampler();
+    private float[] mResampled = null;
+    private byte[] mResampledPcm = null;
+
+    // AudioTrack setup, and frames read from the ring at a time (0 for a whole chunk)
+    private OutputMode mOutputMode = OutputMode.normal();
+    private int mBufferSize = 0;
+    private int mBufferFrames = 0;
+    private int mReadFrames = 0;
+    private int mChunkSize = 0;
+    private PowerStats mPowerStats = null;
+    private PlayerMetrics mMetrics = null;
+
+    // time to first audio, until the first frame is audible
+    private StartupTrace mStartupTrace = null;
+    private Runnable mStartupListener = null;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    private volatile boolean mStop = false;
+    // only touched by the render thread, exported as a trace counter
+    private int mUnderruns = 0;
+    private Thread mThread = null;
+    private volatile boolean mFinished = false;
+    // thread waiting for the render thread to finish, unparked when it does
+    private volatile Thread mWaiter = null;
+    private Runnable mCompletionListener = null;
+    private TrackListener mTrackListener = null;
+    // frames written to the current AudioTrack since it was created or flushed
+    private long mFramesWritten = 0;
+
+    // where the stream restarts after the producer flushed the ring (seek), and when that was requested
+    private volatile long mFlushMediaUs = 0;
+    private volatile long mFlushRequestNanos = 0;
+    private volatile long mLastSeekLatencyUs = 0;
+    private long mAwaitingAudibleSince = 0;
+
+    /**
+     * Create the renderer, it gets its AudioTrack for the first track when started
+     */
+    public AudioRenderer(TrackInfo track, PcmRingBuffer ring, PlayerStates state, PcmBufferPool pool, AudioTrackPool trackPool, PlaybackClock clock) {
+        mTrack = track;
+        mTrackPool = trackPool;
+        mRing = ring;
+        mState = state;
+        mPool = pool;
+        mClock = clock;
+    }
+
+    /**
+     * Set a callback run on the render thread once the ring has been fully drained after end of stream
+     * (not when the renderer is stopped)
+     */
+    public void setCompletionListener(Runnable listener) {
+        mCompletionListener = listener;
+    }
+
+    public void setTrackListener(TrackListener listener) {
+        mTrackListener = listener;
+    }
+
+    /**
+     * Process in float, and output float where the platform allows it, to be set before start
+     * @param enable
+     */
+    public void setFloatPipeline(boolean enable) {
+        mFloatPipeline = enable;
+    }
+
+    /**
+     * Resample to the device native output rate, to be set before start
+     * @param quality one of the Resampler quality levels, QUALITY_NONE to play at the track rate
+     */
+    public void setResampleQuality(int quality) {
+        mResampleQuality = quality;
+    }
+
+    /**
+     * How to set the AudioTrack up, to be set before start
+     * @param mode
+     */
+    public void setOutputMode(OutputMode mode) {
+        mOutputMode = mode;
+    }
+
+    /**
+     * Mark the first write and first audible frame in a startup trace, the listener is run on the
+     * render thread once the first frame was heard
+     */
+    public void setStartupTrace(StartupTrace trace, Runnable listener) {
+        mStartupTrace = trace;
+        mStartupListener = listener;
+    }
+
+    /**
+     * Count the bytes rendered and the underruns, and time the AudioTrack writes
+     * @param metrics
+     */
+    public void setMetrics(PlayerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Account the render thread wakeups, CPU time and the audio written
+     * @param stats
+     */
+    public void setPowerStats(PowerStats stats) {
+        mPowerStats = stats;
+    }
+
+    public void start() {
+        if (mOutputMode.isLowLatency()) {
+            // the low latency mode always runs at the native rate, and writes a burst at a time
+            if (mResampleQuality == Resampler.QUALITY_NONE) mResampleQuality = Resampler.QUALITY_MEDIUM;
+            mReadFrames = mOutputMode.framesPerBurst;
+        }
+        if (mResampleQuality != Resampler.QUALITY_NONE) {
+            mNativeRate = mOutputMode.nativeSampleRate > 0 ? mOutputMode.nativeSampleRate : AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        }
+        mChunkSize = mOutputMode.getChunkSize();
+        if (mFloatPipeline || mResampleQuality != Resampler.QUALITY_NONE) mWork = new float[mChunkSize / 2];
+        acquireAudioTrack(mTrack);
+        configureStages(mTrack);
+        // the clock counts AudioTrack frames
+        mClock.reset(0, mOutputRate);
+        // start playing, the render thread feeds the AudioTrack from the PCM ring
+        mAudioTrack.play();
+        mThread = new Thread(this, "JPlayer-render");
+        mThread.start();
+    }
+
+    /**
+     * Stop rendering right away, whatever is left in the ring is dropped
+     */
+    public void stop() {
+        mStop = true;
+        if (mThread != null) LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Wake the render thread up, when the ring was flushed while paused
+     */
+    public void wakeUp() {
+        if (mThread != null) LockSupport.unpark(mThread);
+    }
+
+    /**
+     * @return true once the render thread stopped or drained the ring, or if it never started
+     */
+    public boolean isFinished() {
+        return mThread == null || mFinished;
+    }
+
+    /**
+     * Park the calling thread until the render thread finished or the timeout expires, or until
+     * unparked, by a command for it
+     * @param timeoutUs
+     */
+    public void awaitFinished(long timeoutUs) {
+        mWaiter = Thread.currentThread();
+        if (!isFinished()) LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(timeoutUs));
+        mWaiter = null;
+    }
+
+    /**
+     * Wait for the render thread to finish, either because it was stopped or the ring was drained,
+     * and give the AudioTrack back for the next playback
+     */
+    public void join() {
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mAudioTrack != null) {
+            mTrackPool.recycle(mAudioTrack, mBufferSize);
+            mAudioTrack = null;
+        }
+    }
+
+    /**
+     * Called by the producer right before flushing the ring, so the track and the clock restart from there
+     * @param mediaUs media time of the first frame written after the flush
+     * @param requestNanos when the seek was requested, to measure the seek to audible latency
+     */
+    public void setFlushPosition(long mediaUs, long requestNanos) {
+        mFlushMediaUs = mediaUs;
+        mFlushRequestNanos = requestNanos;
+    }
+
+    /**
+     * @return time between the last seek request and the first frame played from the new position, in us
+     */
+    public long getLastSeekLatencyUs() {
+        return mLastSeekLatencyUs;
+    }
+
+    @Override
+    public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        byte[] chunk = mPool.acquire(mChunkSize);
+        boolean buffering = true;
+        long clockUpdateNs = 0;
+        long cpuNanos = mPowerStats != null ? mPowerStats.addThreadCpuTime(0) : 0;
+
+        while (!mStop && !mRing.isDrained()) {
+            if (mPowerStats != null) mPowerStats.onWakeup();
+
+            // start of the next track
+            Object marker;
+            while ((marker = mRing.pollMarker()) != null) onMarker(marker, true);
+
+            // pause implementation, stop feeding the track and pause it so it doesn't drain
+            if (mState.isPaused()) {
+                mAudioTrack.pause();
+                mClock.update(mAudioTrack, false);
+                while (true) {
+                    // seeking while paused, we are woken up by wakeUp()
+                    if (mRing.consumeFlush()) {
+                        skipTrackMarkers();
+                        flushTrack(false);
+                    }
+                    if (!mState.isPaused() || mStop) break;
+                    // no timeout, leaving PAUSED and stop() unpark us
+                    mState.awaitNotPaused();
+                }
+                // stopped while paused, nothing more is played
+                if (mStop) break;
+                mAudioTrack.play();
+                clockUpdateNs = 0;
+                continue;
+            }
+
+            // the producer dropped what it had written (seek), drop what the track has too
+            if (mRing.consumeFlush()) {
+                skipTrackMarkers();
+                flushTrack(true);
+                buffering = true;
+                clockUpdateNs = 0;
+                continue;
+            }
+
+            // prebuffer up to the low watermark at start, after an underrun or a seek
+            if (buffering) {
+                mRing.awaitData(WAIT_US);
+                if (!mRing.isAboveLowWatermark() && !mRing.isEndOfStream()) continue;
+                buffering = false;
+            }
+
+            if (mOutputMode.isDeepBuffer() && !hasTrackRoom()) continue;
+
+            int len = mRing.read(chunk, 0, mReadFrames > 0 ? Math.min(mChunkSize, mReadFrames * mTrack.getFrameSize()) : mChunkSize);
+            if (len > 0) {
+                boolean tracing = SysTrace.isEnabled();
+                long writeStart = System.nanoTime();
+                if (tracing) SysTrace.beginSection(TRACE_WRITE);
+                int frames = writeTrack(chunk, len);
+                if (tracing) SysTrace.endSection();
+                if (mMetrics != null) {
+                    mMetrics.record(PlayerMetrics.WRITE_TIME, (System.nanoTime() - writeStart) / 1000);
+                    mMetrics.add(PlayerMetrics.BYTES_RENDERED, len);
+                }
+                if (mState.get() == PlayerStates.BUFFERING) mState.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING);
+                mFramesWritten += frames;
+                mClock.onFramesWritten(frames);
+                if (mStartupTrace != null) traceStartup();
+                if (tracing) SysTrace.setCounter(TRACE_TRACK_FILL_MS, (mFramesWritten - (mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL)) * 1000 / mOutputRate);
+                long now = System.nanoTime();
+                if (now - clockUpdateNs >= CLOCK_UPDATE_NS) {
+                    mClock.update(mAudioTrack, true);
+                    clockUpdateNs = now;
+                    if (mPowerStats != null) cpuNanos = mPowerStats.addThreadCpuTime(cpuNanos);
+                }
+                if (mPowerStats != null) mPowerStats.addAudio(frames * 1000000L / mOutputRate);
+                if (mAwaitingAudibleSince != 0 && mAudioTrack.getPlaybackHeadPosition() != 0) {
+                    mLastSeekLatencyUs = (now - mAwaitingAudibleSince) / 1000;
+                    mAwaitingAudibleSince = 0;
+                }
+            } else if (mRing.isFlushPending()) {
+                // nothing to read because of a seek, the flush is handled on the next pass
+            } else if (!mRing.isEndOfStream()) {
+                // already waiting for data after a seek or an underrun, not a new underrun
+                int state = mState.get();
+                if (state != PlayerStates.SEEKING && state != PlayerStates.BUFFERING) {
+                    mUnderruns++;
+                    if (mMetrics != null) mMetrics.increment(PlayerMetrics.UNDERRUNS);
+                    if (SysTrace.isEnabled()) SysTrace.setCounter(TRACE_UNDERRUNS, mUnderruns);
+                    Log.w(LOG_TAG, "underrun, buffering");
+                }
+                buffering = true;
+                mState.transition(PlayerStates.PLAYING, PlayerStates.BUFFERING);
+            }
+        }
+
+        mPool.release(chunk);
+        if (mPowerStats != null) mPowerStats.addThreadCpuTime(cpuNanos);
+        if (!mStop && mCompletionListener != null) mCompletionListener.run();
+        mFinished = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Run a chunk of decoder output through the processing stages and write it to the track
+     * @param chunk
+     * @param len bytes, whole frames
+     * @return number of frames written to the track
+     */
+    private int writeTrack(byte[] chunk, int len) {
+        int frames = len / mTrack.getFrameSize();
+        if (!mFloatPipeline && !mResampling) {
+            mAudioTrack.write(chunk, 0, mMixer.process(chunk, len));
+            return frames;
+        }
+        int samples = FloatPcm.toFloat(chunk, len, mWork);
+        samples = mMixer.process(mWork, samples);
+        float[] out = mWork;
+        byte[] pcm = chunk;
+        if (mResampling) {
+            frames = mResampler.process(mWork, frames, mResampled);
+            samples = frames * mOutputChannels;
+            out = mResampled;
+            pcm = mResampledPcm;
+        }
+        if (mEncoding == AudioFormat.ENCODING_PCM_FLOAT) {
+            mAudioTrack.write(out, 0, samples, AudioTrack.WRITE_BLOCKING);
+        } else {
+            mAudioTrack.write(pcm, 0, mFloatPcm.toPcm16Dithered(out, samples, pcm));
+        }
+        return frames;
+    }
+
+    /**
+     * Mark the first write, and the first audible frame once the track timestamps show it
+     */
+    private void traceStartup() {
+        mStartupTrace.mark(StartupTrace.FIRST_WRITE);
+        if (mAudioTrack.getTimestamp(mTimestamp) && mTimestamp.framePosition > 0) {
+            // the first frame was presented framePosition frames before the timestamp
+            mStartupTrace.markAt(StartupTrace.FIRST_AUDIBLE, mTimestamp.nanoTime - mTimestamp.framePosition * 1000000000L / mOutputRate);
+            mStartupTrace = null;
+            if (mStartupListener != null) mStartupListener.run();
+        }
+    }
+
+    /**
+     * Deep buffer mode: sleep while the track is more than half full, rather than blocking in write
+     * as soon as it can't take a whole chunk, so the track is refilled half a buffer at a time
+     * @return true if there is room for a chunk
+     */
+    private boolean hasTrackRoom() {
+        long queued = mFramesWritten - (mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+        long excess = queued - mBufferFrames / 2;
+        if (excess <= 0) return true;
+        LockSupport.parkNanos(this, Math.min(excess * 1000000L / mOutputRate, DEEP_SLEEP_US) * 1000);
+        return false;
+    }
+
+    /**
+     * @return the AudioTrack sample rate for a track: the native one if it is resampled
+     */
+    private int getOutputRate(TrackInfo track) {
+        if (mNativeRate > 0 && track.sampleRate != mNativeRate && Resampler.isSupported(track.sampleRate, mNativeRate)) return mNativeRate;
+        return track.sampleRate;
+    }
+
+    /**
+     * @return true if the track can be written to the current AudioTrack
+     */
+    private boolean hasSameOutput(TrackInfo track) {
+        return getOutputRate(track) == mOutputRate && track.getChannelConfiguration() == mTrack.getChannelConfiguration();
+    }
+
+    /**
+     * Take an AudioTrack from the pool for a track
+     */
+    private void acquireAudioTrack(TrackInfo track) {
+        mOutputRate = getOutputRate(track);
+        mEncoding = chooseEncoding(mOutputRate, track.getChannelConfiguration());
+        mBufferSize = mOutputMode.getBufferSize(mOutputRate, track.getChannelConfiguration(), mEncoding);
+        int bytesPerSample = mEncoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+        mBufferFrames = mBufferSize / (Integer.bitCount(track.getChannelConfiguration()) * bytesPerSample);
+        mAudioTrack = mTrackPool.acquire(mOutputRate, track.getChannelConfiguration(), mEncoding, mBufferSize);
+    }
+
+    /**
+     * @return the AudioTrack encoding: float for the float pipeline if the platform and the device take it
+     */
+    private int chooseEncoding(int sampleRate, int channelConfiguration) {
+        if (mFloatPipeline && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && AudioTrack.getMinBufferSize(sampleRate, channelConfiguration, AudioFormat.ENCODING_PCM_FLOAT) > 0) {
+            return AudioFormat.ENCODING_PCM_FLOAT;
+        }
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    /**
+     * Drop the audio queued in the track and restart the clock at the flush position
+     * @param playing true if the track is playing, it has to be paused to be flushed
+     */
+    private void flushTrack(boolean playing) {
+        if (playing) mAudioTrack.pause();
+        mAudioTrack.flush();
+        mFramesWritten = 0;
+        mResampler.reset();
+        mClock.reset(mFlushMediaUs);
+        mAwaitingAudibleSince = mFlushRequestNanos;
+        if (playing) mAudioTrack.play();
+    }
+
+    /**
+     * @param marker
+     * @param splice true if what follows the marker is played right after what was written, false if it
+     *               was flushed right after (seek)
+     */
+    private void onMarker(Object marker, boolean splice) {
+        if (marker instanceof FormatChange) onFormatChange(((FormatChange) marker).track, splice);
+        else onTrackMarker((TrackInfo) marker, splice);
+    }
+
+    /**
+     * Switch to the next track
+     */
+    private void onTrackMarker(TrackInfo track, boolean splice) {
+        if (!hasSameOutput(track)) {
+            Log.d(LOG_TAG, "track format change");
+            switchAudioTrack(track, splice);
+            mClock.reset(0, mOutputRate);
+        } else if (splice) {
+            // same format, just keep writing, the clock switches when the track reaches these frames
+            mClock.startSegment(0);
+        }
+        mRing.setFrameSize(track.getFrameSize());
+        configureStages(track);
+        mTrack = track;
+        if (mTrackListener != null) mTrackListener.onTrackStarted(track);
+    }
+
+    /**
+     * The decoder output format changed within the current track, the position carries on
+     */
+    private void onFormatChange(TrackInfo track, boolean splice) {
+        Log.d(LOG_TAG, "output format change");
+        if (!hasSameOutput(track)) {
+            long mediaUs = mClock.getWrittenPositionUs();
+            switchAudioTrack(track, splice);
+            mClock.reset(mediaUs, mOutputRate);
+        }
+        mRing.setFrameSize(track.getFrameSize());
+        configureStages(track);
+        mTrack = track;
+    }
+
+    /**
+     * Set the mixer and the resampler up for a track, the resampler keeps its history if the track has
+     * the same format as the previous one (gapless)
+     */
+    private void configureStages(TrackInfo track) {
+        int outChannels = Integer.bitCount(track.getChannelConfiguration());
+        mMixer.configure(track.channels, outChannels);
+        mOutputChannels = outChannels;
+        if (!mMixer.isPassthrough()) Log.d(LOG_TAG, "downmixing " + track.channels + " channels to stereo");
+
+        mResampling = mOutputRate != track.sampleRate;
+        if (!mResampling) return;
+        Log.d(LOG_TAG, "resampling " + track.sampleRate + "Hz to " + mOutputRate + "Hz");
+        int maxInFrames = mChunkSize / track.getFrameSize();
+        mResampler.configure(track.sampleRate, mOutputRate, outChannels, mResampleQuality, maxInFrames);
+        int samples = mResampler.getMaxOutputFrames(maxInFrames) * outChannels;
+        if (mResampled == null || mResampled.length < samples) {
+            mResampled = new float[samples];
+            mResampledPcm = new byte[2 * samples];
+        }
+    }
+
+    /**
+     * Replace the AudioTrack by one for another format
+     * @param track
+     * @param splice true to play out what was written to the current one first
+     */
+    private void switchAudioTrack(TrackInfo track, boolean splice) {
+        Log.d(LOG_TAG, "switching AudioTrack to " + track.sampleRate + "Hz " + track.channels + " channels");
+        if (splice) playOut();
+        mTrackPool.recycle(mAudioTrack, mBufferSize);
+        acquireAudioTrack(track);
+        mResampler.reset();
+        mFramesWritten = 0;
+        if (!mState.isPaused()) mAudioTrack.play();
+    }
+
+    /**
+     * Apply the markers the ring skipped when flushed, the flush position is in the last one
+     */
+    private void skipTrackMarkers() {
+        Object marker;
+        while ((marker = mRing.pollMarker()) != null) onMarker(marker, false);
+    }
+
+    /**
+     * Let the track play what was written to it, unless stopped
+     */
+    private void playOut() {
+        mAudioTrack.stop();
+        long deadline = System.nanoTime() + PLAYOUT_TIMEOUT_NS;
+        while (!mStop && (mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL) < mFramesWritten && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(this, WAIT_US * 1000);
+        }
+    }
+}
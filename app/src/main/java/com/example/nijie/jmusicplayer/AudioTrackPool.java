@@ -0,0 +1,128 @@
+package com.example.nijie.jmusicplayer;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * Idle AudioTracks kept for the next playback. Creating a track costs startup latency and releasing
+ * one between tracks can be heard, so a track given back is paused and flushed instead, and handed
+ * out again to the next track with the same sample rate, channel configuration, encoding and buffer size.
+ *
+ * Thread safe, tracks are taken and given back by the decode, codec and render threads.
+ */
+public class AudioTrackPool {
+    public final String LOG_TAG = "AudioTrackPool";
+
+    private final AudioTrack[] mTracks;
+    private final int[] mSampleRates;
+    private final int[] mChannelConfigurations;
+    private final int[] mEncodings;
+    private final int[] mBufferSizes;
+    // idle tracks, oldest first
+    private int mCount = 0;
+
+    private volatile int mHits = 0;
+    private volatile int mMisses = 0;
+
+    public AudioTrackPool(int capacity) {
+        mTracks = new AudioTrack[capacity];
+        mSampleRates = new int[capacity];
+        mChannelConfigurations = new int[capacity];
+        mEncodings = new int[capacity];
+        mBufferSizes = new int[capacity];
+    }
+
+    /**
+     * Get a stopped, empty track for a format
+     * @param sampleRate
+     * @param channelConfiguration
+     * @param encoding AudioFormat.ENCODING_PCM_16BIT or ENCODING_PCM_FLOAT
+     * @param bufferSize in bytes
+     * @return an idle track of that format, or a new one
+     */
+    public AudioTrack acquire(int sampleRate, int channelConfiguration, int encoding, int bufferSize) {
+        synchronized (this) {
+            for (int i = mCount - 1; i >= 0; i--) {
+                if (mSampleRates[i] == sampleRate && mChannelConfigurations[i] == channelConfiguration
+                        && mEncodings[i] == encoding && mBufferSizes[i] == bufferSize) {
+                    mHits++;
+                    return remove(i);
+                }
+            }
+            mMisses++;
+        }
+        return new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfiguration,
+                encoding, bufferSize, AudioTrack.MODE_STREAM);
+    }
+
+    /**
+     * Give a track back, whatever it still has queued is dropped. The oldest idle track is released
+     * if the pool is full.
+     * @param audioTrack
+     * @param bufferSize the size it was acquired with
+     */
+    public void recycle(AudioTrack audioTrack, int bufferSize) {
+        try {
+            audioTrack.pause();
+            audioTrack.flush();
+        } catch (IllegalStateException e) {
+            Log.w(LOG_TAG, "dropping track: " + e.getMessage());
+            audioTrack.release();
+            return;
+        }
+
+        AudioTrack evicted = null;
+        synchronized (this) {
+            if (mCount == mTracks.length) evicted = remove(0);
+            mTracks[mCount] = audioTrack;
+            mSampleRates[mCount] = audioTrack.getSampleRate();
+            mChannelConfigurations[mCount] = audioTrack.getChannelConfiguration();
+            mEncodings[mCount] = audioTrack.getAudioFormat();
+            mBufferSizes[mCount] = bufferSize;
+            mCount++;
+        }
+        if (evicted != null) evicted.release();
+    }
+
+    /**
+     * Release all the idle tracks
+     */
+    public void clear() {
+        while (true) {
+            AudioTrack audioTrack;
+            synchronized (this) {
+                if (mCount == 0) return;
+                audioTrack = remove(mCount - 1);
+            }
+            audioTrack.release();
+        }
+    }
+
+    /**
+     * @return number of playbacks that reused an idle track
+     */
+    public int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return number of playbacks that had to create their track
+     */
+    public int getMisses() {
+        return mMisses;
+    }
+
+    private AudioTrack remove(int i) {
+        AudioTrack audioTrack = mTracks[i];
+        mCount--;
+        System.arraycopy(mTracks, i + 1, mTracks, i, mCount - i);
+        System.arraycopy(mSampleRates, i + 1, mSampleRates, i, mCount - i);
+        System.arraycopy(mChannelConfigurations, i + 1, mChannelConfigurations, i, mCount - i);
+        System.arraycopy(mEncodings, i + 1, mEncodings, i, mCount - i);
+        System.arraycopy(mBufferSizes, i + 1, mBufferSizes, i, mCount - i);
+        mTracks[mCount] = null;
+        return audioTrack;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.nijie.jmusicplayer;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+
+/**
+ * Channel mapping between the decoder output (1 to 8 channels, 16 bit, in the Android channel order)
+ * and the AudioTrack.
+ *
+ * Multichannel output is downmixed to stereo with the ITU-R BS.775 coefficients: centre and surrounds
+ * at -3 dB, back centre split at -6 dB, LFE dropped, each side normalized so its gains add up to 1
+ * (5.1 is about -7.7 dB overall) and full scale input can't clip. The platform can't tell at this SDK
+ * level which channel masks the output device really plays (getMinBufferSize only checks the mask
+ * is valid), so passing the decoder channels through is only done when enabled with
+ * {@link #setMultichannelPassthrough}, for a sink known to play them.
+ *
+ * Downmixing is done in place (the output is never longer than the input) with Q14 fixed point
+ * coefficients and saturation, so it allocates nothing. The float pipeline uses the same
+ * coefficients in float.
+ *
+ * Used by the render thread only.
+ */
+public class ChannelMixer {
+    public static final int MAX_CHANNELS = 8;
+
+    private static final int FL = AudioFormat.CHANNEL_OUT_FRONT_LEFT;
+    private static final int FR = AudioFormat.CHANNEL_OUT_FRONT_RIGHT;
+    private static final int FC = AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+    private static final int LFE = AudioFormat.CHANNEL_OUT_LOW_FREQUENCY;
+    private static final int BL = AudioFormat.CHANNEL_OUT_BACK_LEFT;
+    private static final int BR = AudioFormat.CHANNEL_OUT_BACK_RIGHT;
+    private static final int BC = AudioFormat.CHANNEL_OUT_BACK_CENTER;
+    private static final int SL = AudioFormat.CHANNEL_OUT_SIDE_LEFT;
+    private static final int SR = AudioFormat.CHANNEL_OUT_SIDE_RIGHT;
+
+    // channel mask of the decoder output for each channel count, channels are interleaved in mask bit order
+    private static final int[] CHANNEL_MASKS = {
+            0,
+            AudioFormat.CHANNEL_OUT_MONO,
+            FL | FR,
+            FL | FR | FC,
+            FL | FR | BL | BR,
+            FL | FR | FC | BL | BR,
+            FL | FR | FC | LFE | BL | BR,
+            FL | FR | FC | LFE | BL | BR | BC,
+            FL | FR | FC | LFE | BL | BR | SL | SR,
+    };
+
+    // Q14 gains
+    private static final int ONE = 1 << 14;
+    private static final int MINUS_3DB = 11585;
+    private static final int MINUS_6DB = 8192;
+    private static final float FROM_Q14 = 1.0f / ONE;
+
+    // downmix gains of each input channel to the left and right outputs, for each channel count
+    private static final int[][] LEFT = normalize(new int[][] {
+            null,
+            null,
+            { ONE, 0 },
+            { ONE, 0, MINUS_3DB },
+            { ONE, 0, MINUS_3DB, 0 },
+            { ONE, 0, MINUS_3DB, MINUS_3DB, 0 },
+            { ONE, 0, MINUS_3DB, 0, MINUS_3DB, 0 },
+            { ONE, 0, MINUS_3DB, 0, MINUS_3DB, 0, MINUS_6DB },
+            { ONE, 0, MINUS_3DB, 0, MINUS_3DB, 0, MINUS_3DB, 0 },
+    });
+    private static final int[][] RIGHT = normalize(new int[][] {
+            null,
+            null,
+            { 0, ONE },
+            { 0, ONE, MINUS_3DB },
+            { 0, ONE, 0, MINUS_3DB },
+            { 0, ONE, MINUS_3DB, 0, MINUS_3DB },
+            { 0, ONE, MINUS_3DB, 0, 0, MINUS_3DB },
+            { 0, ONE, MINUS_3DB, 0, 0, MINUS_3DB, MINUS_6DB },
+            { 0, ONE, MINUS_3DB, 0, 0, MINUS_3DB, 0, MINUS_3DB },
+    });
+
+    // normalized 5.1 gains of the unrolled kernel
+    private static final int FRONT_51 = LEFT[6][0];
+    private static final int CENTER_51 = LEFT[6][2];
+    private static final int SURROUND_51 = LEFT[6][4];
+
+    private static volatile boolean sPassthrough = false;
+
+    // channel counts whose mask was checked against the device, and the result
+    private static final boolean[] sChecked = new boolean[MAX_CHANNELS + 1];
+    private static final boolean[] sSupported = new boolean[MAX_CHANNELS + 1];
+
+    private int mInChannels = 2;
+    private int mOutChannels = 2;
+    private int[] mLeft = LEFT[2];
+    private int[] mRight = RIGHT[2];
+
+    /**
+     * @param channels decoder output channel count
+     * @return the channel mask of that output
+     */
+    public static int getChannelMask(int channels) {
+        if (channels < 1 || channels > MAX_CHANNELS) throw new IllegalArgumentException("unsupported channel count " + channels);
+        return CHANNEL_MASKS[channels];
+    }
+
+    /**
+     * Play multichannel tracks with their own channels when the platform takes the channel mask,
+     * instead of downmixing them. Off by default, for sinks known to play the channels (HDMI).
+     * @param enabled
+     */
+    public static void setMultichannelPassthrough(boolean enabled) {
+        sPassthrough = enabled;
+    }
+
+    /**
+     * Channel mask to open the AudioTrack with: the decoder's own if passthrough is enabled and the
+     * platform takes it, stereo otherwise
+     * @param channels decoder output channel count
+     * @param sampleRate
+     */
+    public static int getOutputChannelMask(int channels, int sampleRate) {
+        if (channels <= 2) return getChannelMask(channels);
+        if (!sPassthrough) return getChannelMask(2);
+        synchronized (sChecked) {
+            if (!sChecked[channels]) {
+                sSupported[channels] = AudioTrack.getMinBufferSize(sampleRate, CHANNEL_MASKS[channels], AudioFormat.ENCODING_PCM_16BIT) > 0;
+                sChecked[channels] = true;
+            }
+            return sSupported[channels] ? CHANNEL_MASKS[channels] : getChannelMask(2);
+        }
+    }
+
+    /**
+     * @param inChannels decoder output channel count
+     * @param outChannels AudioTrack channel count, the same for passthrough or 2 for a stereo downmix
+     */
+    public void configure(int inChannels, int outChannels) {
+        if (inChannels < 1 || inChannels > MAX_CHANNELS) throw new IllegalArgumentException("unsupported channel count " + inChannels);
+        // mono is always played as is, upmixing could not be done in place
+        if (outChannels != inChannels && (outChannels != 2 || inChannels < 2)) throw new IllegalArgumentException("can't map " + inChannels + " channels to " + outChannels);
+        mInChannels = inChannels;
+        mOutChannels = outChannels;
+        mLeft = LEFT[inChannels];
+        mRight = RIGHT[inChannels];
+    }
+
+    public boolean isPassthrough() {
+        return mInChannels == mOutChannels;
+    }
+
+    /**
+     * Map whole frames of decoder output, in place
+     * @param pcm 16 bit little endian PCM
+     * @param size bytes of input, a multiple of the input frame size
+     * @return bytes of output, at the start of pcm
+     */
+    public int process(byte[] pcm, int size) {
+        if (isPassthrough()) return size;
+        if (mInChannels == 6) return downmix51(pcm, size);
+        return downmix(pcm, size, mInChannels, mLeft, mRight);
+    }
+
+    /**
+     * Map whole frames of float samples, in place
+     * @param pcm
+     * @param samples number of input samples, a multiple of the input channel count
+     * @return number of output samples, at the start of pcm
+     */
+    public int process(float[] pcm, int samples) {
+        if (isPassthrough()) return samples;
+        int channels = mInChannels;
+        int out = 0;
+        for (int in = 0; in + channels <= samples; in += channels) {
+            float l = 0, r = 0;
+            for (int c = 0; c < channels; c++) {
+                float s = pcm[in + c];
+                l += s * mLeft[c];
+                r += s * mRight[c];
+            }
+            pcm[out++] = l * FROM_Q14;
+            pcm[out++] = r * FROM_Q14;
+        }
+        return out;
+    }
+
+    /**
+     * Generic downmix to stereo, any channel count
+     */
+    static int downmix(byte[] pcm, int size, int channels, int[] left, int[] right) {
+        int inFrame = 2 * channels;
+        int out = 0;
+        for (int in = 0; in + inFrame <= size; in += inFrame) {
+            int l = 0, r = 0;
+            for (int c = 0; c < channels; c++) {
+                int s = getSample(pcm, in + 2 * c);
+                l += s * left[c];
+                r += s * right[c];
+            }
+            // the output frame never overlaps the part of the input not read yet
+            putSample(pcm, out, l >> 14);
+            putSample(pcm, out + 2, r >> 14);
+            out += 4;
+        }
+        return out;
+    }
+
+    /**
+     * 5.1 downmix, unrolled: L = (FL + 0.707 FC + 0.707 BL) / 2.414, R = (FR + 0.707 FC + 0.707 BR) / 2.414
+     */
+    static int downmix51(byte[] pcm, int size) {
+        int out = 0;
+        for (int in = 0; in + 12 <= size; in += 12) {
+            int c = getSample(pcm, in + 4) * CENTER_51;
+            int l = getSample(pcm, in) * FRONT_51 + c + getSample(pcm, in + 8) * SURROUND_51;
+            int r = getSample(pcm, in + 2) * FRONT_51 + c + getSample(pcm, in + 10) * SURROUND_51;
+            putSample(pcm, out, l >> 14);
+            putSample(pcm, out + 2, r >> 14);
+            out += 4;
+        }
+        return out;
+    }
+
+    /**
+     * Scale each row of gains down so they add up to 1 at most, rounding down
+     */
+    private static int[][] normalize(int[][] gains) {
+        for (int[] row : gains) {
+            if (row == null) continue;
+            int sum = 0;
+            for (int g : row) sum += g;
+            if (sum <= ONE) continue;
+            for (int c = 0; c < row.length; c++) row[c] = row[c] * ONE / sum;
+        }
+        return gains;
+    }
+
+    private static int getSample(byte[] pcm, int i) {
+        return (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+    }
+
+    private static void putSample(byte[] pcm, int i, int sample) {
+        if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+        else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+        pcm[i] = (byte) sample;
+        pcm[i + 1] = (byte) (sample >> 8);
+    }
+}
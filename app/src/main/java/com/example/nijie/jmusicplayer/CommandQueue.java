@@ -0,0 +1,81 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Control commands (seek, stop) sent from any thread to the thread that owns the extractor and
+ * the codec, which applies them between buffers. Play and pause are atomic {@link PlayerStates}
+ * transitions and don't need to go through here.
+ *
+ * Sending never blocks: the queue is lock-free (multiple producers, single consumer) and the
+ * consumer, if parked waiting for a command, is unparked.
+ */
+public class CommandQueue {
+    public static final int SEEK = 3;
+    public static final int STOP = 4;
+
+    public static class Command {
+        public final int type;
+        public final long arg;
+        final long enqueueNanos;
+
+        Command(int type, long arg) {
+            this.type = type;
+            this.arg = arg;
+            this.enqueueNanos = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Command> mQueue = new ConcurrentLinkedQueue<Command>();
+    private volatile Thread mConsumer = null;
+
+    // command to effect latency, updated by the consumer
+    private volatile long mLastLatencyUs = 0;
+    private volatile long mMaxLatencyUs = 0;
+
+    /**
+     * Set the thread that applies the commands, it is unparked when a command arrives
+     * @param consumer
+     */
+    public void setConsumer(Thread consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * Send a command, can be called from any thread, never blocks
+     */
+    public void offer(int type, long arg) {
+        mQueue.offer(new Command(type, arg));
+        Thread consumer = mConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    /**
+     * @return the next command, null if there is none
+     */
+    public Command poll() {
+        return mQueue.poll();
+    }
+
+    public void clear() {
+        mQueue.clear();
+    }
+
+    /**
+     * Called by the consumer once a command took effect, to measure the latency
+     */
+    public void onApplied(Command command) {
+        long latencyUs = (System.nanoTime() - command.enqueueNanos) / 1000;
+        mLastLatencyUs = latencyUs;
+        if (latencyUs > mMaxLatencyUs) mMaxLatencyUs = latencyUs;
+    }
+
+    public long getLastLatencyUs() {
+        return mLastLatencyUs;
+    }
+
+    public long getMaxLatencyUs() {
+        return mMaxLatencyUs;
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.nijie.jmusicplayer;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Second deck for crossfades: decodes the incoming track while the decode thread still decodes the
+ * outgoing one, and mixes the incoming PCM into the outgoing PCM with equal-power gain curves.
+ *
+ * The incoming decoder is only pulled as far as the outgoing output needs, so during a fade the decode
+ * thread does twice the decoding work but never runs ahead. Only the outgoing frames the incoming track
+ * has PCM for are mixed, the rest waits for the next call, so both tracks stay aligned when the
+ * incoming decoder is late. Mixing is integer only, the gains come from a precomputed quarter sine
+ * table, and the buffers come from the PCM pool, so a fade allocates nothing and costs a few
+ * multiplies per sample.
+ *
+ * The fade is aborted when the incoming decoder changes its output format (HE-AAC with SBR) or
+ * delivers nothing for {@link #MAX_STARVED_US}: the caller then cuts the outgoing track and goes on
+ * with the incoming one alone, see {@link #isAborted}.
+ *
+ * Only used from the decode thread. Both tracks must start with the same output format, see {@link #canMix}.
+ */
+public class Crossfader {
+    public final String LOG_TAG = "Crossfader";
+
+    public static final int MAX_CROSSFADE_MS = 12000;
+
+    // gains are Q15, FADE_IN[i] = sin(pi/2 * i / GAIN_STEPS), the fade out gain is the fade in one mirrored (cosine)
+    private static final int GAIN_STEPS = 1024;
+    private static final int[] FADE_IN = new int[GAIN_STEPS + 1];
+    static {
+        for (int i = 0; i <= GAIN_STEPS; i++) FADE_IN[i] = (int) Math.round(32767 * Math.sin(Math.PI / 2 * i / GAIN_STEPS));
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+    // outgoing bytes mixed per call at most, the incoming FIFO keeps room for a codec buffer on top of that
+    private static final int MIX_SIZE = BUFFER_SIZE / 2;
+    // wait for incoming output, only when there is none to mix at all
+    private static final long TIMEOUT_US = 2000;
+    // incoming decoder silent for longer than this aborts the fade, before the PCM buffer runs dry
+    public static final long MAX_STARVED_US = 100000;
+
+    private final PcmBufferPool mPool;
+
+    private TrackDecoder mIncoming = null;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private MediaCodec.BufferInfo mInfo = null;
+    private boolean mInputDone, mOutputDone;
+    private int mTrimBytes;
+    private boolean mAborted;
+    // output format the incoming decoder changed to, when that aborted the fade
+    private MediaFormat mChangedFormat;
+    private long mStarvedSinceNs;
+
+    // decoded incoming PCM not mixed yet
+    private byte[] mFifo;
+    private int mFifoStart, mFifoEnd;
+    // mixed PCM, handed to the caller
+    private byte[] mMix;
+    private ByteBuffer mMixBuffer;
+
+    private int mFrameSize;
+    private long mFadeFrames, mFramesMixed;
+
+    public Crossfader(PcmBufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return true if the PCM of both tracks can be mixed sample by sample: same rate and channels
+     * (the channel configuration isn't enough, multichannel tracks are downmixed by the render thread)
+     */
+    public static boolean canMix(TrackInfo outgoing, TrackInfo incoming) {
+        return outgoing != null && incoming != null && outgoing.sampleRate == incoming.sampleRate
+                && outgoing.channels == incoming.channels;
+    }
+
+    /**
+     * Start fading to a track, its decoder must be started and not fed yet
+     * @param incoming
+     * @param fadeFrames length of the fade, usually what is left of the outgoing track
+     * @param frameSize bytes per frame, of both tracks
+     */
+    public void start(TrackDecoder incoming, long fadeFrames, int frameSize) {
+        if (incoming.info.getFrameSize() != frameSize) throw new IllegalArgumentException("can't mix " + incoming.info.channels + " channels into " + frameSize + " byte frames");
+        if (mInfo == null) mInfo = new MediaCodec.BufferInfo();
+        mInputBuffers = incoming.codec.getInputBuffers();
+        mOutputBuffers = incoming.codec.getOutputBuffers();
+        begin(incoming, fadeFrames, frameSize);
+        Log.d(LOG_TAG, "crossfade over " + mFadeFrames + " frames");
+    }
+
+    /**
+     * Start fading to a track whose PCM is handed in with {@link #feed}, without touching its decoder
+     */
+    void begin(TrackDecoder incoming, long fadeFrames, int frameSize) {
+        mIncoming = incoming;
+        mInputDone = false;
+        mOutputDone = false;
+        mTrimBytes = incoming.encoderDelay * frameSize;
+        mAborted = false;
+        mChangedFormat = null;
+        mStarvedSinceNs = 0;
+        mFifo = mPool.acquire(BUFFER_SIZE);
+        mFifoStart = 0;
+        mFifoEnd = 0;
+        mMix = mPool.acquire(BUFFER_SIZE);
+        mMixBuffer = ByteBuffer.wrap(mMix);
+        mFrameSize = frameSize;
+        mFadeFrames = Math.max(1, fadeFrames);
+        mFramesMixed = 0;
+    }
+
+    public boolean isActive() {
+        return mIncoming != null;
+    }
+
+    public TrackDecoder getIncoming() {
+        return mIncoming;
+    }
+
+    /**
+     * @return true once the incoming extractor reached its end
+     */
+    public boolean isInputDone() {
+        return mInputDone;
+    }
+
+    /**
+     * @return true once the incoming decoder delivered its last buffer
+     */
+    public boolean isOutputDone() {
+        return mOutputDone;
+    }
+
+    /**
+     * @return true if the fade can't go on: the rest of the outgoing track is to be dropped, the
+     * incoming one goes on alone after {@link #drain}
+     */
+    public boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * @return the new output format of the incoming decoder if it aborted the fade, to be applied
+     * after the PCM from {@link #drain}, null otherwise
+     */
+    public MediaFormat getChangedFormat() {
+        return mChangedFormat;
+    }
+
+    /**
+     * @return encoder delay of the incoming track not dropped yet, in bytes
+     */
+    public int getTrimBytes() {
+        return mTrimBytes;
+    }
+
+    /**
+     * Mix the outgoing PCM with the incoming PCM decoded so far
+     * @param outgoing its position is advanced past the mixed bytes, what is left waits for incoming PCM
+     * @return the mixed PCM, valid until the next call, empty if the incoming decoder had nothing yet
+     */
+    public ByteBuffer mix(ByteBuffer outgoing) {
+        int len = Math.min(outgoing.remaining(), MIX_SIZE);
+        len -= len % mFrameSize;
+        // a partial frame can't be mixed, drop it
+        if (len == 0) outgoing.position(outgoing.limit());
+        else fillIncoming(len);
+
+        // only as far as the incoming track goes, once it ended the outgoing one fades out alone
+        int available = Math.min(len, mFifoEnd - mFifoStart);
+        available -= available % mFrameSize;
+        if (!mOutputDone) len = mAborted ? 0 : available;
+        outgoing.get(mMix, 0, len);
+        for (int i = 0; i < len; i += mFrameSize) {
+            int step = gainStep();
+            int gainOut = FADE_IN[GAIN_STEPS - step];
+            int gainIn = FADE_IN[step];
+            for (int j = i; j < i + mFrameSize; j += 2) {
+                int out = getSample(mMix, j);
+                int in = (j < available) ? getSample(mFifo, mFifoStart + j) : 0;
+                putSample(mMix, j, (out * gainOut + in * gainIn) >> 15);
+            }
+            mFramesMixed++;
+        }
+        mFifoStart += Math.min(available, len);
+
+        mMixBuffer.clear();
+        mMixBuffer.limit(len);
+        return mMixBuffer;
+    }
+
+    /**
+     * The outgoing track ended: the incoming PCM decoded so far, with the rest of its fade in applied
+     * @return the PCM, valid until {@link #finish}
+     */
+    public ByteBuffer drain() {
+        int len = mFifoEnd - mFifoStart;
+        len -= len % mFrameSize;
+        // cut short, the fade in completes over what is left
+        if (mAborted) mFadeFrames = Math.max(1, Math.min(mFadeFrames, mFramesMixed + len / mFrameSize));
+        for (int i = mFifoStart; i < mFifoStart + len; i += mFrameSize) {
+            int gainIn = FADE_IN[gainStep()];
+            for (int j = i; j < i + mFrameSize; j += 2) putSample(mFifo, j, (getSample(mFifo, j) * gainIn) >> 15);
+            mFramesMixed++;
+        }
+        return ByteBuffer.wrap(mFifo, mFifoStart, len);
+    }
+
+    /**
+     * End the fade, the incoming decoder is handed over to the caller
+     * @return the incoming track
+     */
+    public TrackDecoder finish() {
+        TrackDecoder incoming = mIncoming;
+        mIncoming = null;
+        mInputBuffers = null;
+        mOutputBuffers = null;
+        mPool.release(mFifo);
+        mPool.release(mMix);
+        mFifo = null;
+        mMix = null;
+        mMixBuffer = null;
+        return incoming;
+    }
+
+    /**
+     * Abort the fade and release the incoming track, if any
+     */
+    public void cancel() {
+        if (mIncoming != null) finish().release();
+    }
+
+    private int gainStep() {
+        return (int) Math.min(GAIN_STEPS, mFramesMixed * GAIN_STEPS / mFadeFrames);
+    }
+
+    /**
+     * Decode the incoming track until at least need bytes are waiting or the decoder has nothing ready,
+     * only waiting for it when nothing at all is waiting
+     */
+    private void fillIncoming(int need) {
+        MediaCodec codec = mIncoming.codec;
+        while (mFifoEnd - mFifoStart < need && !mOutputDone && !mAborted) {
+            if (!mInputDone) {
+                int inputBufIndex = codec.dequeueInputBuffer(0);
+                if (inputBufIndex >= 0) {
+                    int sampleSize = mIncoming.extractor.readSampleData(mInputBuffers[inputBufIndex], 0);
+                    if (sampleSize < 0) {
+                        mInputDone = true;
+                        codec.queueInputBuffer(inputBufIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    } else {
+                        codec.queueInputBuffer(inputBufIndex, 0, sampleSize, mIncoming.extractor.getSampleTime(), 0);
+                        mIncoming.extractor.advance();
+                    }
+                }
+            }
+
+            boolean starved = mFifoEnd - mFifoStart < mFrameSize;
+            int res = codec.dequeueOutputBuffer(mInfo, starved ? TIMEOUT_US : 0);
+            if (res >= 0) {
+                mStarvedSinceNs = 0;
+                ByteBuffer buf = mOutputBuffers[res];
+                buf.position(mInfo.offset);
+                buf.limit(mInfo.offset + mInfo.size);
+                feed(buf, (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+                buf.clear();
+                codec.releaseOutputBuffer(res, false);
+            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = codec.getOutputBuffers();
+            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = codec.getOutputFormat();
+                TrackInfo info = mIncoming.info;
+                if ((format.containsKey(MediaFormat.KEY_SAMPLE_RATE) && format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != info.sampleRate)
+                        || (format.containsKey(MediaFormat.KEY_CHANNEL_COUNT) && format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != info.channels)) {
+                    Log.w(LOG_TAG, "incoming output format changed to " + format + ", aborting the crossfade");
+                    abort(format);
+                }
+            } else if (!starved) {
+                // the rest of the outgoing PCM is mixed on the next call
+                return;
+            } else {
+                long now = System.nanoTime();
+                if (mStarvedSinceNs == 0) mStarvedSinceNs = now;
+                else if (now - mStarvedSinceNs > MAX_STARVED_US * 1000) {
+                    Log.w(LOG_TAG, "no incoming output for " + MAX_STARVED_US / 1000 + "ms, aborting the crossfade");
+                    abort(null);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take decoded incoming PCM, the encoder delay not dropped yet is dropped from it first
+     * @param pcm from its position to its limit, consumed
+     * @param end true if it is the last PCM of the incoming track
+     */
+    void feed(ByteBuffer pcm, boolean end) {
+        if (mTrimBytes > 0) {
+            int skip = Math.min(mTrimBytes, pcm.remaining());
+            pcm.position(pcm.position() + skip);
+            mTrimBytes -= skip;
+        }
+        append(pcm);
+        if (end) mOutputDone = true;
+    }
+
+    /**
+     * Stop mixing, see {@link #isAborted}
+     * @param changedFormat the new output format of the incoming decoder, null if it didn't change
+     */
+    void abort(MediaFormat changedFormat) {
+        mChangedFormat = changedFormat;
+        mAborted = true;
+    }
+
+    private void append(ByteBuffer buf) {
+        if (mFifoStart > 0) {
+            System.arraycopy(mFifo, mFifoStart, mFifo, 0, mFifoEnd - mFifoStart);
+            mFifoEnd -= mFifoStart;
+            mFifoStart = 0;
+        }
+        int len = Math.min(buf.remaining(), mFifo.length - mFifoEnd);
+        if (len < buf.remaining()) Log.w(LOG_TAG, "crossfade buffer full, dropping " + (buf.remaining() - len) + " bytes");
+        buf.get(mFifo, mFifoEnd, len);
+        mFifoEnd += len;
+    }
+
+    // 16 bit little endian PCM
+    private static int getSample(byte[] pcm, int i) {
+        return (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+    }
+
+    private static void putSample(byte[] pcm, int i, int sample) {
+        if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+        else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+        pcm[i] = (byte) sample;
+        pcm[i + 1] = (byte) (sample >> 8);
+    }
+}
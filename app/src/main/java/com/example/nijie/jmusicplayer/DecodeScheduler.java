@@ -0,0 +1,93 @@
+package com.example.nijie.jmusicplayer;
+
+import android.util.Log;
+
+/**
+ * Pacing and watchdog of the synchronous decode loop.
+ *
+ * The codec dequeue timeouts follow the audio buffered for the render thread: short when it runs low,
+ * so input and output are both serviced quickly, longer when plenty is buffered, so the loop doesn't
+ * spin. A waiting dequeue returns as soon as the codec has a buffer, the timeout only bounds idle passes.
+ *
+ * The decoder is watched by the time spent waiting on it without getting decoded audio, not by a count
+ * of loop passes: waiting longer than the audio that was buffered is a stall (the render thread
+ * underruns), waiting longer than {@link #STALL_TIMEOUT_US} fails the playback. Time spent
+ * paused or waiting for the render thread to drain the buffer doesn't count.
+ *
+ * Used by the decode thread, the counters can be read from any thread.
+ */
+public class DecodeScheduler {
+    public final String LOG_TAG = "DecodeScheduler";
+
+    private static final long MIN_TIMEOUT_US = 1000;
+    private static final long MAX_TIMEOUT_US = 20000;
+    // the buffered audio the next decoded buffer is due within, as a fraction
+    private static final int TIMEOUT_DIVISOR = 8;
+    // waits shorter than this are never stalls, even with an empty buffer (start, seek)
+    private static final long MIN_STALL_US = 100000;
+    public static final long STALL_TIMEOUT_US = 5000000;
+
+    // codec wait since the decoder last produced audio, and how much was buffered then
+    private long mWaitUs = 0;
+    private long mBufferedUs = 0;
+    private boolean mStalled = false;
+
+    private volatile int mIdleSpins = 0;
+    private volatile int mStalls = 0;
+
+    /**
+     * Start watching afresh, after a seek or a track change
+     */
+    public void reset() {
+        mWaitUs = 0;
+        mBufferedUs = 0;
+        mStalled = false;
+    }
+
+    /**
+     * @param bufferedUs decoded audio waiting to be rendered
+     * @return timeout for the codec dequeue calls
+     */
+    public long getTimeoutUs(long bufferedUs) {
+        return Math.max(MIN_TIMEOUT_US, Math.min(MAX_TIMEOUT_US, bufferedUs / TIMEOUT_DIVISOR));
+    }
+
+    /**
+     * Account for a pass of the decode loop
+     * @param waitedUs time spent in the codec calls
+     * @param busy true if an input buffer was queued or the codec returned something
+     * @param decoded true if the codec returned decoded audio
+     * @param bufferedUs decoded audio waiting to be rendered
+     * @return true if the decoder produced nothing for longer than STALL_TIMEOUT_US
+     */
+    public boolean onPass(long waitedUs, boolean busy, boolean decoded, long bufferedUs) {
+        if (decoded) {
+            mWaitUs = 0;
+            mBufferedUs = bufferedUs;
+            mStalled = false;
+            return false;
+        }
+        if (!busy) mIdleSpins++;
+        mWaitUs += waitedUs;
+        if (!mStalled && mWaitUs > Math.max(mBufferedUs, MIN_STALL_US)) {
+            mStalled = true;
+            mStalls++;
+            Log.w(LOG_TAG, "decoder stalled, no output for " + mWaitUs / 1000 + "ms with " + mBufferedUs / 1000 + "ms buffered");
+        }
+        return mWaitUs > STALL_TIMEOUT_US;
+    }
+
+    /**
+     * @return loop passes where neither input nor output made progress
+     */
+    public int getIdleSpins() {
+        return mIdleSpins;
+    }
+
+    /**
+     * @return number of times the decoder took longer than the buffered audio to produce output
+     */
+    public int getStalls() {
+        return mStalls;
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.nijie.jmusicplayer;
+
+import java.io.IOException;
+
+import android.media.MediaCodec;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Idle decoders kept for the next tracks, creating a MediaCodec is one of the slowest steps before
+ * the first audio. A decoder given back is stopped, which takes it back to its unconfigured state,
+ * and the next track of the same mime type configures it again instead of creating a new one.
+ *
+ * Asynchronous mode callbacks are delivered on the looper of the thread that created the codec
+ * (there is no Handler argument before API 23), so a decoder is only handed out for callbacks to
+ * the thread it was created on.
+ *
+ * Thread safe, decoders are taken and given back by the decode, pre-roll and codec threads.
+ */
+public class DecoderPool {
+    public final String LOG_TAG = "DecoderPool";
+
+    private final MediaCodec[] mCodecs;
+    private final String[] mMimes;
+    private final int[] mSampleRates;
+    private final int[] mChannels;
+    private final Looper[] mLoopers;
+    // idle decoders, oldest first
+    private int mCount = 0;
+
+    private volatile int mHits = 0;
+    private volatile int mMisses = 0;
+
+    public DecoderPool(int capacity) {
+        mCodecs = new MediaCodec[capacity];
+        mMimes = new String[capacity];
+        mSampleRates = new int[capacity];
+        mChannels = new int[capacity];
+        mLoopers = new Looper[capacity];
+    }
+
+    /**
+     * Get an unconfigured decoder for a track, preferably one last used with the same format
+     * @param mime
+     * @param sampleRate
+     * @param channels
+     * @param callbacks true if it will be used with callbacks on the calling thread's looper
+     * @return an idle decoder, or a new one
+     * @throws IOException if a new decoder can't be created
+     */
+    public MediaCodec acquire(String mime, int sampleRate, int channels, boolean callbacks) throws IOException {
+        Looper looper = Looper.myLooper();
+        synchronized (this) {
+            int found = -1;
+            for (int i = mCount - 1; i >= 0; i--) {
+                if (!mime.equals(mMimes[i]) || (callbacks && mLoopers[i] != looper)) continue;
+                if (found < 0) found = i;
+                if (mSampleRates[i] == sampleRate && mChannels[i] == channels) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found >= 0) {
+                mHits++;
+                return remove(found);
+            }
+            mMisses++;
+        }
+        return MediaCodec.createDecoderByType(mime);
+    }
+
+    /**
+     * Give a decoder back, it is stopped and kept for a later track, or released if the pool is full
+     * @param codec
+     * @param mime
+     * @param sampleRate
+     * @param channels
+     * @param looper looper of the thread that created it, null if it had none
+     * @param callbacks true if callbacks were set on it
+     */
+    public void recycle(MediaCodec codec, String mime, int sampleRate, int channels, Looper looper, boolean callbacks) {
+        try {
+            codec.stop();
+            if (callbacks) codec.setCallback(null);
+        } catch (IllegalStateException e) {
+            // in the error state, not reusable
+            Log.w(LOG_TAG, "dropping decoder: " + e.getMessage());
+            codec.release();
+            return;
+        }
+
+        MediaCodec evicted = null;
+        synchronized (this) {
+            if (mCount == mCodecs.length) evicted = remove(0);
+            mCodecs[mCount] = codec;
+            mMimes[mCount] = mime;
+            mSampleRates[mCount] = sampleRate;
+            mChannels[mCount] = channels;
+            mLoopers[mCount] = looper;
+            mCount++;
+        }
+        if (evicted != null) evicted.release();
+    }
+
+    /**
+     * Release all the idle decoders, when the app goes to the background
+     */
+    public void clear() {
+        while (true) {
+            MediaCodec codec;
+            synchronized (this) {
+                if (mCount == 0) return;
+                codec = remove(mCount - 1);
+            }
+            codec.release();
+        }
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return number of decoders reused instead of created
+     */
+    public int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return number of decoders created because none could be reused
+     */
+    public int getMisses() {
+        return mMisses;
+    }
+
+    private MediaCodec remove(int i) {
+        MediaCodec codec = mCodecs[i];
+        mCount--;
+        // keep the oldest first order
+        System.arraycopy(mCodecs, i + 1, mCodecs, i, mCount - i);
+        System.arraycopy(mMimes, i + 1, mMimes, i, mCount - i);
+        System.arraycopy(mSampleRates, i + 1, mSampleRates, i, mCount - i);
+        System.arraycopy(mChannels, i + 1, mChannels, i, mCount - i);
+        System.arraycopy(mLoopers, i + 1, mLoopers, i, mCount - i);
+        mCodecs[mCount] = null;
+        mMimes[mCount] = null;
+        mLoopers[mCount] = null;
+        return codec;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.Locale;
+
+/**
+ * A fixed size log of the decode loop events, in place of logcat in the hot path: an event is an
+ * event code and two numeric arguments stored in preallocated arrays, nothing is formatted or
+ * allocated until the log is dumped, usually when an error occurs.
+ *
+ * The same event repeated with the same arguments (an idle pass after another) is counted in a
+ * single entry, so idle spinning doesn't push the interesting history out of the log.
+ *
+ * Written by one thread (the decode or codec thread), {@link #dump} is meant to be called by that
+ * thread too, a dump from another one may show an entry being written.
+ */
+public class EventLog {
+    public static final int INPUT_UNAVAILABLE = 0;
+    public static final int OUTPUT_TRY_AGAIN = 1;
+    // neither an input buffer nor output from the codec
+    public static final int IDLE_PASS = 2;
+    public static final int OUTPUT_BUFFERS_CHANGED = 3;
+    public static final int OUTPUT_FORMAT_CHANGED = 4;
+    public static final int OUTPUT_UNKNOWN = 5;
+    public static final int INPUT_EOS = 6;
+    public static final int OUTPUT_EOS = 7;
+    public static final int STALL = 8;
+    public static final int SEEK = 9;
+    public static final int CODEC_ERROR = 10;
+
+    // event names, and the names of their arguments, null if unused
+    private static final String[][] FORMATS = {
+            { "inputUnavailable", null, null },
+            { "outputTryAgain", null, null },
+            { "idlePass", null, null },
+            { "outputBuffersChanged", null, null },
+            { "outputFormatChanged", "sampleRate", "channels" },
+            { "outputUnknown", "result", null },
+            { "inputEOS", "ptsUs", null },
+            { "outputEOS", "ptsUs", null },
+            { "stall", "waitedUs", null },
+            { "seek", "targetUs", null },
+            { "codecError", null, null },
+    };
+
+    private final long[] mNanos;
+    private final int[] mCodes;
+    private final long[] mArgs0;
+    private final long[] mArgs1;
+    private final int[] mRepeats;
+    // entries written so far, the last ones are kept
+    private long mCount = 0;
+
+    /**
+     * @param capacity number of entries kept, a power of 2
+     */
+    public EventLog(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of 2");
+        mNanos = new long[capacity];
+        mCodes = new int[capacity];
+        mArgs0 = new long[capacity];
+        mArgs1 = new long[capacity];
+        mRepeats = new int[capacity];
+    }
+
+    public void log(int code) {
+        log(code, 0, 0);
+    }
+
+    public void log(int code, long arg0) {
+        log(code, arg0, 0);
+    }
+
+    /**
+     * @param code one of the event constants
+     * @param arg0
+     * @param arg1
+     */
+    public void log(int code, long arg0, long arg1) {
+        int mask = mCodes.length - 1;
+        long now = System.nanoTime();
+        if (mCount > 0) {
+            int last = (int) ((mCount - 1) & mask);
+            if (mCodes[last] == code && mArgs0[last] == arg0 && mArgs1[last] == arg1) {
+                mRepeats[last]++;
+                mNanos[last] = now;
+                return;
+            }
+        }
+        int i = (int) (mCount & mask);
+        mNanos[i] = now;
+        mCodes[i] = code;
+        mArgs0[i] = arg0;
+        mArgs1[i] = arg1;
+        mRepeats[i] = 0;
+        mCount++;
+    }
+
+    /**
+     * @return number of entries held
+     */
+    public int size() {
+        return (int) Math.min(mCount, mCodes.length);
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Format the entries held, oldest first, one per line, timed from the last one
+     * @return the log, empty if nothing was logged
+     */
+    public String dump() {
+        int mask = mCodes.length - 1;
+        int size = size();
+        if (size == 0) return "";
+        long lastNanos = mNanos[(int) ((mCount - 1) & mask)];
+        StringBuilder sb = new StringBuilder();
+        for (long n = mCount - size; n < mCount; n++) {
+            int i = (int) (n & mask);
+            String[] format = mCodes[i] >= 0 && mCodes[i] < FORMATS.length ? FORMATS[mCodes[i]] : null;
+            sb.append(String.format(Locale.US, "%9.3fms ", (mNanos[i] - lastNanos) / 1000000.0));
+            if (format == null) {
+                sb.append("event").append(mCodes[i]).append(' ').append(mArgs0[i]).append(' ').append(mArgs1[i]);
+            } else {
+                sb.append(format[0]);
+                if (format[1] != null) sb.append(' ').append(format[1]).append('=').append(mArgs0[i]);
+                if (format[2] != null) sb.append(' ').append(format[2]).append('=').append(mArgs1[i]);
+            }
+            if (mRepeats[i] > 0) sb.append(" (x").append(mRepeats[i] + 1).append(')');
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
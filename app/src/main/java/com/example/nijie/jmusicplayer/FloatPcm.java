@@ -0,0 +1,62 @@
+package com.example.nijie.jmusicplayer;
+
+/**
+ * Conversions for the float pipeline: decoder output is converted once to float samples in [-1, 1),
+ * processed in float, and either written as float to the AudioTrack or brought back to 16 bit with
+ * TPDF dither where float output is not available.
+ *
+ * A converter holds the dither noise generator state, one per thread.
+ */
+public class FloatPcm {
+    private static final float FROM_16BIT = 1.0f / 32768;
+    // 23 random bits to a float in [0, 1)
+    private static final float FROM_23BIT = 1.0f / (1 << 23);
+
+    private int mSeed = 0x2545F491;
+
+    /**
+     * @param pcm 16 bit little endian PCM
+     * @param size bytes
+     * @param out at least size / 2 samples
+     * @return number of samples
+     */
+    public static int toFloat(byte[] pcm, int size, float[] out) {
+        int samples = size / 2;
+        for (int i = 0, j = 0; i < samples; i++, j += 2) {
+            out[i] = (short) ((pcm[j] & 0xff) | (pcm[j + 1] << 8)) * FROM_16BIT;
+        }
+        return samples;
+    }
+
+    /**
+     * Back to 16 bit, with triangular (TPDF) dither of +/- 1 LSB so the requantization error is noise
+     * instead of distortion correlated with the signal
+     * @param in float samples
+     * @param samples
+     * @param out at least 2 * samples bytes, 16 bit little endian
+     * @return number of bytes
+     */
+    public int toPcm16Dithered(float[] in, int samples, byte[] out) {
+        int seed = mSeed;
+        for (int i = 0, j = 0; i < samples; i++, j += 2) {
+            // two uniform values from a xorshift generator, their difference is triangular
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            float r1 = (seed >>> 9) * FROM_23BIT;
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            float r2 = (seed >>> 9) * FROM_23BIT;
+
+            // rounding with an offset, a cast alone truncates toward zero
+            int s = (int) (in[i] * 32768 + (r1 - r2) + 32768.5f) - 32768;
+            if (s > Short.MAX_VALUE) s = Short.MAX_VALUE;
+            else if (s < Short.MIN_VALUE) s = Short.MIN_VALUE;
+            out[j] = (byte) s;
+            out[j + 1] = (byte) (s >> 8);
+        }
+        mSeed = seed;
+        return 2 * samples;
+    }
+}
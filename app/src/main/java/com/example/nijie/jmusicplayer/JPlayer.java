@@ -5,46 +5,151 @@ package com.example.nijie.jmusicplayer;
  */
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 public class JPlayer implements Runnable {
     public final String LOG_TAG = "JPlayer";
 
+    // systrace sections and counter tracks
+    private static final String TRACE_READ_SAMPLE = "JPlayer.readSample";
+    private static final String TRACE_DEQUEUE_INPUT = "JPlayer.dequeueInput";
+    private static final String TRACE_QUEUE_INPUT = "JPlayer.queueInput";
+    private static final String TRACE_DEQUEUE_OUTPUT = "JPlayer.dequeueOutput";
+    private static final String TRACE_PCM_BUFFER_MS = "JPlayer.pcmBufferMs";
+    private static final String TRACE_PENDING_OUTPUT = "JPlayer.pendingOutput";
+
     private Context mContext;
 
+    // the source being decoded, mExtractor and mCodec are its own
+    private TrackDecoder mDeck = null;
+    // idle decoders and AudioTracks, reused by the next tracks
+    private DecoderPool mDecoderPool = new DecoderPool(2);
+    private AudioTrackPool mAudioTrackPool = new AudioTrackPool(2);
     private MediaExtractor mExtractor;
     private MediaCodec mCodec;
-    private AudioTrack mAudioTrack;
     private MediaFormat mFormat = null;
 
+    // gapless playback (synchronous mode): sources queued after the current one, the next one is
+    // opened and its decoder started in the background while the current one plays
+    private ConcurrentLinkedQueue<TrackDecoder> mNextSources = new ConcurrentLinkedQueue<TrackDecoder>();
+    private Thread mPrerollThread = null;
+    private volatile TrackDecoder mNextDeck = null;
+    // encoder delay left to drop at the start of the current track
+    private int mTrimStartBytes = 0;
+    // output format of the PCM last written to the ring, as told to the render thread
+    private TrackInfo mSinkInfo = null;
+    private AudioRenderer.TrackListener mTrackListener = new AudioRenderer.TrackListener() { @Override public void onTrackStarted(final TrackInfo track) {
+        mPositionReporter.start(track.durationUs, mClock);
+        if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStart(track.mime, track.sampleRate, track.channels, track.durationUs);  } });
+    } };
+
     private PlayerEvents mEvents = null;
+    // position updates are coalesced and delivered to the UI at a fixed rate
+    private PositionReporter mPositionReporter = new PositionReporter(null);
     private PlayerStates mState = new PlayerStates();
+    // reusable PCM arrays, so the decode loops don't allocate for every buffer
+    private PcmBufferPool mPcmPool = new PcmBufferPool(4);
+    // crossfade to the next source (synchronous mode), 0 for gapless
+    private int mCrossfadeMs = 0;
+    private Crossfader mCrossfader = new Crossfader(mPcmPool);
+    // process in float and output float where the platform allows it
+    private boolean mFloatOutput = false;
+    // resample to the device native output rate
+    private int mResampleQuality = Resampler.QUALITY_NONE;
+    // AudioTrack buffer and rate
+    private OutputMode mOutputMode = OutputMode.normal();
+    // wakeups and CPU time of the playback threads, and the codec thread's CPU time reading (asynchronous mode)
+    private PowerStats mPowerStats = new PowerStats();
+    private long mCodecCpuNanos = 0;
+    // codec timeouts and watchdog of the synchronous loop
+    private DecodeScheduler mScheduler = new DecodeScheduler();
+    // time to first audio of the current playback
+    private volatile StartupTrace mStartupTrace = null;
+    // counters and latency histograms, over the life of the player
+    private final PlayerMetrics mMetrics = new PlayerMetrics();
+    // recent events of the decode loop, written by the decode or codec thread, dumped on errors
+    private final EventLog mEventLog = new EventLog(256);
+
+    // decoded PCM waiting to be rendered, and the thread that renders it (synchronous mode)
+    private volatile PcmRingBuffer mPcmRing = null;
+    private volatile AudioRenderer mRenderer = null;
+    // audible position, from the AudioTrack timestamps
+    private volatile PlaybackClock mClock = null;
+    private int mRingDepthMs = 500, mRingLowWatermarkMs = 100, mRingHighWatermarkMs = 400;
 
     private String mSourcePath = null;
     private int sourceRawResId = -1;
 
-    private boolean stop = false;
+    private volatile boolean stop = false;
+
+    // control operations, applied by the thread that owns the extractor and the codec
+    private CommandQueue mCommands = new CommandQueue();
+    private AtomicBoolean mCommandDrainScheduled = new AtomicBoolean(false);
+    private Runnable mDrainCommands = new Runnable() { @Override public void run() {
+        mCommandDrainScheduled.set(false);
+        if (mCodec != null && !processCommands(true)) asyncRelease(false);
+    } };
+
+    // seeks are coalesced, latest wins: only the last target requested before the decoding thread gets to it is used
+    private AtomicLong mPendingSeekUs = new AtomicLong(-1);
+    private volatile long mSeekRequestNanos = 0;
+    private AtomicInteger mSeeksCoalesced = new AtomicInteger(0);
+    private boolean mSeekApplied = false;
+
+    // exact seeking: seek to the sync frame before the target, then decode and drop up to the target
+    private boolean mExactSeek = false;
+    private long mDiscardUntilUs = -1;
 
     Handler mHandler = new Handler();
 
+    // asynchronous mode: the codec is created and all its callbacks run on this thread, never on the UI thread.
+    // It is kept between plays, so the decoders it created can be reused, until releaseIdleDecoders()
+    private HandlerThread mCodecThread = null;
+    private Handler mCodecHandler = null;
+    // output buffers waiting for room in the PCM ring, so the codec thread never blocks on the sink
+    private PendingOutputQueue mPendingOutput = new PendingOutputQueue(32);
+    // the first frame of the playback was heard, on the render thread
+    private Runnable mStartupTraceDone = new Runnable() { @Override public void run() {
+        final StartupTrace trace = mStartupTrace;
+        if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStartupTrace(trace);  } });
+    } };
+    private Runnable mDrainPendingOutput = new Runnable() { @Override public void run() { asyncDrainPendingOutput();  } };
+
     String mime = null;
     int sampleRate = 0, channels = 0, bitrate = 0;
     long presentationTimeUs = 0, duration = 0;
 
     public void setEventsListener(PlayerEvents events) {
         this.mEvents = events;
+        mPositionReporter.setEventsListener(events);
+    }
+
+    /**
+     * Set how often onPlayUpdate is called, updates are aligned to display frames
+     * @param intervalMs 0 to get an update every frame
+     */
+    public void setPlayUpdateInterval(int intervalMs) {
+        mPositionReporter.setUpdateInterval(intervalMs);
+    }
+
+    /**
+     * @return how many times per second the main thread is woken up for position updates
+     */
+    public int getPlayUpdatePostsPerSecond() {
+        return mPositionReporter.getMainThreadPostsPerSecond();
     }
 
     public JPlayer() {
@@ -75,44 +180,605 @@ public class JPlayer implements Runnable {
         sourceRawResId = resid;
     }
 
+    /**
+     * Queue a source to play right after the current one, without any gap: its decoder is prepared in
+     * the background and its PCM, encoder delay and padding trimmed, goes to the same AudioTrack.
+     * Synchronous mode only, stop() clears the queue.
+     * @param src
+     */
+    public void queueDataSource(String src) {
+        mNextSources.offer(new TrackDecoder(src, mDecoderPool));
+    }
+
+    public void queueDataSource(Context context, int resid) {
+        mNextSources.offer(new TrackDecoder(context, resid, mDecoderPool));
+    }
+
+    /**
+     * Crossfade between queued sources instead of playing them back to back, applied from the next
+     * track change. Only between sources with the same sample rate and channels, others are gapless.
+     * @param ms length of the crossfade, 0 to disable it
+     */
+    public void setCrossfade(int ms) {
+        if (ms < 0 || ms > Crossfader.MAX_CROSSFADE_MS)
+            throw new IllegalArgumentException("crossfade must be between 0 and " + Crossfader.MAX_CROSSFADE_MS + " ms");
+        mCrossfadeMs = ms;
+    }
+
+    /**
+     * Render through the float pipeline: PCM processed in float and written to the AudioTrack as float
+     * on API 21+, or dithered back to 16 bit. Applied from the next play.
+     * @param enable
+     */
+    public void setFloatOutput(boolean enable) {
+        mFloatOutput = enable;
+    }
+
+    /**
+     * Resample to the device native output rate instead of leaving it to the platform mixer.
+     * Applied from the next play.
+     * @param quality Resampler.QUALITY_LOW, QUALITY_MEDIUM or QUALITY_HIGH, QUALITY_NONE to play at the file rate
+     */
+    public void setResampleQuality(int quality) {
+        if (quality < Resampler.QUALITY_NONE || quality > Resampler.QUALITY_HIGH) throw new IllegalArgumentException("bad resample quality " + quality);
+        mResampleQuality = quality;
+    }
+
+    /**
+     * Play multichannel tracks with their own channels instead of a stereo downmix, for a sink known
+     * to play them (HDMI), see {@link ChannelMixer}. Applied from the next play.
+     * @param enabled
+     */
+    public void setMultichannelPassthrough(boolean enabled) {
+        ChannelMixer.setMultichannelPassthrough(enabled);
+    }
+
+    /**
+     * Set the AudioTrack up for low latency ({@link OutputMode#lowLatency}), for power saving
+     * ({@link OutputMode#deepBuffer}) or the default. Applied from the next play.
+     * @param mode
+     */
+    public void setOutputMode(OutputMode mode) {
+        mOutputMode = mode;
+    }
+
+    /**
+     * @return measured output latency, from the audio being written to the AudioTrack to it being
+     * played, in us, 0 when not known yet
+     */
+    public long getOutputLatencyUs() {
+        PlaybackClock clock = mClock;
+        return (clock == null) ? 0 : clock.getOutputLatencyUs();
+    }
+
+    /**
+     * Counters (buffers decoded, bytes rendered, underruns, format changes, seeks) and latency histograms
+     * (decode time per buffer, AudioTrack write time, command latency) since the player was created.
+     * Can be called from any thread at any time, playback goes on undisturbed.
+     * @return a copy of the current values
+     */
+    public PlayerMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * @return time to first audio of the last playback started, stages not reached yet aren't marked
+     */
+    public StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
+    /**
+     * @return passes of the synchronous decode loop where the codec had nothing to give or take
+     */
+    public int getIdleSpinCount() {
+        return mScheduler.getIdleSpins();
+    }
+
+    /**
+     * @return number of times the decoder took longer to produce audio than what was buffered (synchronous mode)
+     */
+    public int getDecoderStallCount() {
+        return mScheduler.getStalls();
+    }
+
+    /**
+     * @return wakeups of the playback threads per minute, since the playback started
+     */
+    public int getWakeupsPerMinute() {
+        return mPowerStats.getWakeupsPerMinute();
+    }
+
+    /**
+     * @return CPU time used by the playback threads per second of audio played, in us
+     */
+    public long getCpuUsPerAudioSecond() {
+        return mPowerStats.getCpuUsPerAudioSecond();
+    }
+
+    /**
+     * Drop the queued sources, the one already prepared in the background, if any, still plays
+     */
+    public void clearQueue() {
+        mNextSources.clear();
+    }
+
     public void synchronousPlay() {
-        if (mState.get() == PlayerStates.STOPPED) {
+        if (mState.startPreparing()) {
+            mStartupTrace = new StartupTrace();
             stop = false;
+            mCommands.clear();
+            // a seek requested while stopped is not for this playback
+            mPendingSeekUs.set(-1);
             new Thread(this).start();
-        }
-        if (mState.get() == PlayerStates.READY_TO_PLAY) {
-            mState.set(PlayerStates.PLAYING);
-            syncNotify();
+        } else {
+            mState.resume();
         }
     }
 
     public void asynchronousPlay(){
-        if (mState.get() == PlayerStates.STOPPED) {
+        if (mState.startPreparing()) {
+            mStartupTrace = new StartupTrace();
             stop = false;
+            mCommands.clear();
+            // a seek requested while stopped is not for this playback
+            mPendingSeekUs.set(-1);
             asyncStart();
+        } else {
+            mState.resume();
+        }
+    }
+
+    /**
+     * @return the current state, one of the {@link PlayerStates} constants
+     */
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Queue a control command for the decoding thread, never blocks
+     */
+    private void sendCommand(int type, long arg) {
+        mCommands.offer(type, arg);
+        // in asynchronous mode the codec may be idle (paused, ring full), don't wait for its next callback
+        Handler codecHandler = mCodecHandler;
+        if (codecHandler != null && mCommandDrainScheduled.compareAndSet(false, true)) codecHandler.post(mDrainCommands);
+    }
+
+    /**
+     * Apply the queued control commands, on the thread that owns the extractor and the codec
+     * @param canSeek false when holding codec buffers, a seek flushes the codec and would invalidate them
+     * @return false once a stop command has been applied
+     */
+    private boolean processCommands(boolean canSeek) {
+        CommandQueue.Command command;
+        while ((command = mCommands.poll()) != null) {
+            switch (command.type) {
+                case CommandQueue.SEEK:
+                    // the target is in mPendingSeekUs, the command only wakes us up
+                    break;
+                case CommandQueue.STOP:
+                    stop = true;
+                    break;
+            }
+            mCommands.onApplied(command);
+            mMetrics.record(PlayerMetrics.COMMAND_LATENCY, mCommands.getLastLatencyUs());
+        }
+        if (canSeek && !stop) applyPendingSeek();
+        return !stop;
+    }
+
+    /**
+     * Seek to the latest requested position, if any. Everything decoded from the old position is
+     * dropped, in the codec, the PCM ring and the AudioTrack, so no stale audio is played.
+     */
+    private void applyPendingSeek() {
+        long pos = mPendingSeekUs.getAndSet(-1);
+        if (pos < 0 || mCodec == null || mPcmRing == null) return;
+        mEventLog.log(EventLog.SEEK, pos);
+        // the incoming track of a crossfade is already the one reported, seek in it
+        if (mCrossfader.isActive()) completeCrossfade(mPcmRing);
+
+        // paused stays paused, the render thread flushes the track anyway
+        boolean seeking = mState.transition(PlayerStates.PLAYING, PlayerStates.SEEKING)
+                || mState.transition(PlayerStates.BUFFERING, PlayerStates.SEEKING);
+
+        long mediaUs;
+        if (mExactSeek) {
+            // start decoding from the sync frame before the target, the output before it is dropped
+            mExtractor.seekTo(pos, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mDiscardUntilUs = pos;
+            mediaUs = pos;
+        } else {
+            mExtractor.seekTo(pos, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            mediaUs = mExtractor.getSampleTime();
+            if (mediaUs < 0) mediaUs = pos;
+        }
+        mTrimStartBytes = 0;
+
+        mCodec.flush();
+        mMetrics.clearInputs();
+        mMetrics.increment(PlayerMetrics.SEEKS);
+        mRenderer.setFlushPosition(mediaUs, mSeekRequestNanos);
+        mPcmRing.flush();
+        // the render thread is parked if paused, it flushes the track and moves the clock right away
+        mRenderer.wakeUp();
+        if (mCodecHandler != null) {
+            // asynchronous mode: held output buffers are gone, and the codec must be restarted after a flush
+            mPendingOutput.clear();
+            // an output format change may have been among them, it goes out before the next output
+            if (mSinkInfo != mDeck.info) mPendingOutput.addMarker(new AudioRenderer.FormatChange(mDeck.info));
+            mCodec.start();
         }
-        if (mState.get() == PlayerStates.READY_TO_PLAY) {
-            mState.set(PlayerStates.PLAYING);
-            syncNotify();
+        mSeekApplied = true;
+        if (seeking) mState.transition(PlayerStates.SEEKING, PlayerStates.BUFFERING);
+    }
+
+    /**
+     * Enable exact seeking, on the next play: seeks land on the requested sample instead of the closest
+     * sync frame, which for VBR MP3 and AAC can be seconds away
+     * @param exact
+     */
+    public void setExactSeek(boolean exact) {
+        mExactSeek = exact;
+    }
+
+    /**
+     * Exact seek: drop the decoded frames before the seek target
+     * @param buf decoded PCM, its position is moved past the frames to drop
+     * @param ptsUs presentation time of the first frame in buf
+     * @param frameSize
+     */
+    private void discardBeforeSeekTarget(ByteBuffer buf, long ptsUs, int frameSize) {
+        if (mDiscardUntilUs < 0) return;
+        long skipBytes = (mDiscardUntilUs - ptsUs) * sampleRate / 1000000 * frameSize;
+        if (skipBytes >= buf.remaining()) {
+            buf.position(buf.limit());
+            return;
         }
+        if (skipBytes > 0) buf.position(buf.position() + (int) skipBytes);
+        mDiscardUntilUs = -1;
+    }
+
+    /**
+     * Make a source the one being decoded
+     */
+    private void setCurrentDeck(TrackDecoder deck) {
+        mDeck = deck;
+        mExtractor = deck.extractor;
+        mCodec = deck.codec;
+        mFormat = deck.format;
+        mSourcePath = deck.sourcePath;
+        sourceRawResId = deck.sourceRawResId;
+        mime = deck.mime;
+        sampleRate = deck.sampleRate; channels = deck.channels; bitrate = deck.bitrate;
+        presentationTimeUs = 0; duration = deck.duration;
+    }
+
+    /**
+     * Gapless: drop the encoder delay at the start of the current track, and hold its last frames
+     * back in the ring, they are dropped as encoder padding once its end is reached
+     */
+    private void startTrimming(PcmRingBuffer ring) {
+        int frameSize = mDeck.info.getFrameSize();
+        mTrimStartBytes = mDeck.encoderDelay * frameSize;
+        setHoldback(ring, mDeck.encoderPadding, frameSize);
     }
 
     /**
-     * Call notify to control the PAUSE (waiting) state, when the state is changed
+     * Hold the encoder padding back, the ring can't hold back more than half its low watermark
+     * (10 ms in the low latency mode), the rest of the padding is played
      */
-    public synchronized void syncNotify() {
-        notify();
+    private void setHoldback(PcmRingBuffer ring, int paddingFrames, int frameSize) {
+        int held = ring.setHoldback(paddingFrames, frameSize);
+        if (held < paddingFrames) Log.w(LOG_TAG, "PCM buffer too small to trim the encoder padding, " + (paddingFrames - held) + " frames will play");
+    }
+
+    private void trimEncoderDelay(ByteBuffer buf) {
+        if (mTrimStartBytes <= 0) return;
+        int skip = Math.min(mTrimStartBytes, buf.remaining());
+        buf.position(buf.position() + skip);
+        mTrimStartBytes -= skip;
+    }
+
+    /**
+     * Open and start the decoder of the next queued source on a background thread, if not done yet
+     */
+    private void startPreroll() {
+        if (mPrerollThread != null || mNextDeck != null || mNextSources.isEmpty()) return;
+        mPrerollThread = new Thread(new Runnable() { @Override public void run() {
+            TrackDecoder deck;
+            while ((deck = mNextSources.poll()) != null) {
+                if (deck.open(false)) {
+                    deck.start();
+                    mNextDeck = deck;
+                    return;
+                }
+                Log.e(LOG_TAG, "can't play queued source, skipping it");
+                deck.release();
+            }
+        } }, "JPlayer-preroll");
+        mPrerollThread.start();
+    }
+
+    /**
+     * @return the prepared next source, waiting for it if it is still being prepared, null if the queue is empty
+     */
+    private TrackDecoder takeNextDeck() {
+        // sources queued too late for the background preparation
+        startPreroll();
+        if (mPrerollThread != null) {
+            try {
+                mPrerollThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mPrerollThread = null;
+        }
+        TrackDecoder next = mNextDeck;
+        mNextDeck = null;
+        return next;
+    }
+
+    /**
+     * @return true if the next source is ready and the current one is close enough to its end to start fading to it
+     */
+    private boolean shouldStartCrossfade(long ptsUs) {
+        if (mCrossfadeMs == 0 || duration <= 0 || ptsUs < duration - mCrossfadeMs * 1000L) return false;
+        TrackDecoder next = mNextDeck;
+        // a different channel count, even downmixed to the same output, goes through the gapless splice
+        return next != null && Crossfader.canMix(mDeck.info, next.info);
+    }
+
+    /**
+     * Start decoding the next source along with the current one, over what is left of the current one
+     */
+    private void startCrossfade(PcmRingBuffer ring, long ptsUs) {
+        TrackDecoder next = takeNextDeck();
+        int frameSize = mDeck.info.getFrameSize();
+        // the padding is mixed at a near zero gain, no need to trim it
+        ring.setHoldback(0, frameSize);
+        // the position switches to the incoming track now
+        if (!ring.addMarker(next.info, next.info.getFrameSize())) Log.w(LOG_TAG, "too many pending tracks, track change not signaled");
+        mSinkInfo = next.info;
+        mCrossfader.start(next, (duration - ptsUs) * sampleRate / 1000000, frameSize);
+    }
+
+    /**
+     * End the crossfade, the incoming source becomes the current one
+     */
+    private void completeCrossfade(PcmRingBuffer ring) {
+        mTrimStartBytes = mCrossfader.getTrimBytes();
+        TrackDecoder incoming = mCrossfader.finish();
+        mDeck.release();
+        setCurrentDeck(incoming);
+        mDiscardUntilUs = -1;
+        setHoldback(ring, incoming.encoderPadding, incoming.info.getFrameSize());
+        startPreroll();
+    }
+
+    /**
+     * The decoder output format changed, HE-AAC with SBR doubles the sample rate of the container,
+     * some multichannel streams change their channel count
+     * @param format
+     * @return a marker telling the render thread, in-band, to switch format, null if nothing changes
+     */
+    private AudioRenderer.FormatChange onOutputFormatChanged(MediaFormat format) {
+        Log.d(LOG_TAG, "output format has changed to " + format);
+        TrackInfo info = mDeck.info;
+        int rate = format.containsKey(MediaFormat.KEY_SAMPLE_RATE) ? format.getInteger(MediaFormat.KEY_SAMPLE_RATE) : info.sampleRate;
+        int count = format.containsKey(MediaFormat.KEY_CHANNEL_COUNT) ? format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) : info.channels;
+        mEventLog.log(EventLog.OUTPUT_FORMAT_CHANGED, rate, count);
+        if (rate == info.sampleRate && count == info.channels) return null;
+        mMetrics.increment(PlayerMetrics.FORMAT_CHANGES);
+
+        TrackInfo changed = new TrackInfo(info.mime, rate, count, info.durationUs);
+        mDeck.info = changed;
+        sampleRate = rate;
+        channels = count;
+        return new AudioRenderer.FormatChange(changed);
+    }
+
+    /**
+     * Put an output format change in the ring, after the PCM already written, never blocks
+     * @return false if all marker slots are taken, nothing was changed, to be tried again later
+     */
+    private boolean tryAddFormatChange(PcmRingBuffer ring, AudioRenderer.FormatChange change) {
+        if (!ring.addMarker(change, change.track.getFrameSize())) return false;
+        mSinkInfo = change.track;
+        return true;
+    }
+
+    /**
+     * Put an output format change in the ring, after the PCM already written, waiting for the render
+     * thread to free a marker slot if needed (synchronous mode), unless stopped
+     */
+    private void addFormatChange(PcmRingBuffer ring, AudioRenderer.FormatChange change) {
+        while (!tryAddFormatChange(ring, change) && !stop) {
+            // the render thread frees the slots as it reads past the markers
+            ring.awaitSpace(ring.getCapacity(), 10000);
+            mPowerStats.onWakeup();
+            // a seek flushes the ring, the render thread then skips the pending markers
+            processCommands(false);
+        }
+    }
+
+    /**
+     * Copy PCM into the ring, waiting for room if needed, until done, stopped or a seek is waiting
+     */
+    private void writePcm(PcmRingBuffer ring, ByteBuffer buf) {
+        while (buf.hasRemaining() && !stop) {
+            if (ring.write(buf) == 0) {
+                ring.awaitSpace(buf.remaining(), 10000);
+                mPowerStats.onWakeup();
+                // the render thread may be paused, keep listening to commands
+                processCommands(false);
+                // a seek is waiting, the rest of this buffer is stale anyway
+                if (mPendingSeekUs.get() >= 0) break;
+            }
+        }
+    }
+
+    /**
+     * Gapless: continue with the next source, its PCM goes right after the current one's in the ring
+     */
+    private void spliceNextDeck(TrackDecoder next, PcmRingBuffer ring) {
+        Log.d(LOG_TAG, "gapless switch to the next source");
+        // what is held back is the padding at the end of the track that just ended
+        ring.dropHoldback();
+        if (!ring.addMarker(next.info, next.info.getFrameSize())) Log.w(LOG_TAG, "too many pending tracks, track change not signaled");
+        mSinkInfo = next.info;
+        mDeck.release();
+        setCurrentDeck(next);
+        mDiscardUntilUs = -1;
+        startTrimming(ring);
+        startPreroll();
+    }
+
+    /**
+     * @return time between the last seek request and the new position being audible, in us
+     */
+    public long getLastSeekLatencyUs() {
+        AudioRenderer renderer = mRenderer;
+        return (renderer == null) ? 0 : renderer.getLastSeekLatencyUs();
+    }
+
+    /**
+     * Release the decoders and AudioTracks kept for reuse, and the thread the decoders were created on,
+     * to be called when the app goes to the background. Playback in progress is not affected.
+     */
+    public void releaseIdleResources() {
+        mDecoderPool.clear();
+        mAudioTrackPool.clear();
+        int state = mState.get();
+        if ((state == PlayerStates.STOPPED || state == PlayerStates.ERROR) && mCodecThread != null) {
+            mCodecThread.quitSafely();
+            mCodecThread = null;
+        }
+    }
+
+    /**
+     * @return number of tracks that reused an idle decoder
+     */
+    public int getDecoderPoolHits() {
+        return mDecoderPool.getHits();
+    }
+
+    /**
+     * @return number of tracks that had to create their decoder
+     */
+    public int getDecoderPoolMisses() {
+        return mDecoderPool.getMisses();
+    }
+
+    /**
+     * @return number of playbacks that reused an idle AudioTrack
+     */
+    public int getAudioTrackPoolHits() {
+        return mAudioTrackPool.getHits();
+    }
+
+    /**
+     * @return number of playbacks that had to create their AudioTrack
+     */
+    public int getAudioTrackPoolMisses() {
+        return mAudioTrackPool.getMisses();
+    }
+
+    /**
+     * @return number of seek requests dropped because a newer one arrived before they were applied
+     */
+    public int getCoalescedSeekCount() {
+        return mSeeksCoalesced.get();
+    }
+
+    /**
+     * @return time between the last control command being sent and taking effect, in us
+     */
+    public long getLastCommandLatencyUs() {
+        return mCommands.getLastLatencyUs();
+    }
+
+    /**
+     * @return worst command to effect latency seen so far, in us
+     */
+    public long getMaxCommandLatencyUs() {
+        return mCommands.getMaxLatencyUs();
+    }
+
+    private PcmRingBuffer createPcmRing(int frameSize) {
+        int bytesPerMs = Math.max(1, sampleRate * frameSize / 1000);
+        return new PcmRingBuffer(mOutputMode.getRingDepthMs(mRingDepthMs) * bytesPerMs, frameSize,
+                mOutputMode.getLowWatermarkMs(mRingLowWatermarkMs) * bytesPerMs,
+                mOutputMode.getHighWatermarkMs(mRingHighWatermarkMs, mRingDepthMs) * bytesPerMs);
     }
     public void stop() {
-        stop = true;
+        sendCommand(CommandQueue.STOP, 0);
     }
 
+    /**
+     * Pause, takes effect right away: the render thread pauses the AudioTrack before its next buffer
+     */
     public void pause() {
-        mState.set(PlayerStates.READY_TO_PLAY);
+        mState.pause();
+    }
+
+    /**
+     * Configure the PCM buffer between the decode and the render threads, applied on the next play
+     * @param depthMs total size of the buffer
+     * @param lowWatermarkMs rendering (re)starts above this level, decoding resumes below it
+     * @param highWatermarkMs decoding pauses above this level
+     */
+    public void setPcmBufferDepth(int depthMs, int lowWatermarkMs, int highWatermarkMs) {
+        if (lowWatermarkMs > highWatermarkMs || highWatermarkMs > depthMs)
+            throw new IllegalArgumentException("watermarks must be ordered low <= high <= depth");
+        mRingDepthMs = depthMs;
+        mRingLowWatermarkMs = lowWatermarkMs;
+        mRingHighWatermarkMs = highWatermarkMs;
+    }
+
+    /**
+     * How much decoded audio is waiting to be rendered, can be polled from any thread
+     * @return fill level of the PCM buffer in ms, 0 when not playing
+     */
+    public int getPcmBufferFillMs() {
+        PcmRingBuffer ring = mPcmRing;
+        if (ring == null || sampleRate == 0) return 0;
+        return (int) (1000L * (ring.getFillLevel() / ring.getFrameSize()) / sampleRate);
     }
 
+    /**
+     * @return fill level of the PCM buffer in percent of its depth
+     */
+    public int getPcmBufferFillPercent() {
+        PcmRingBuffer ring = mPcmRing;
+        if (ring == null) return 0;
+        return (int) (100L * ring.getFillLevel() / ring.getCapacity());
+    }
+
+    /**
+     * Position that is audible right now, as opposed to the decoding position.
+     * Lock free, cheap enough to be called every display frame.
+     * @return position in us, 0 when not playing
+     */
+    public long getCurrentPositionUs() {
+        PlaybackClock clock = mClock;
+        return (clock == null) ? 0 : clock.getPositionUs();
+    }
+
+    /**
+     * Seek to a position, can be called as often as needed (SeekBar drags): if the previous request
+     * has not been applied yet, it is replaced
+     * @param pos position in us
+     */
     public void seek(long pos) {
-        mExtractor.seekTo(pos, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        // nothing to seek in, and nothing would apply it
+        int state = mState.get();
+        if (state == PlayerStates.STOPPED || state == PlayerStates.ERROR) return;
+        mSeekRequestNanos = System.nanoTime();
+        if (mPendingSeekUs.getAndSet(pos) < 0) sendCommand(CommandQueue.SEEK, pos);
+        else mSeeksCoalesced.incrementAndGet();
     }
 
     public void seek(int percent) {
@@ -120,73 +786,145 @@ public class JPlayer implements Runnable {
         seek(pos);
     }
 
-
     /**
-     * A pause mechanism that would block current thread when pause flag is set (READY_TO_PLAY)
+     * A pause mechanism that parks the decoding thread while paused, until resumed or a command arrives
+     * @return false if playback was stopped
      */
-    public synchronized void waitPlay(){
-        // if (duration == 0) return;
-        while(mState.get() == PlayerStates.READY_TO_PLAY) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    private boolean waitPlay(){
+        if (!processCommands(true)) return false;
+        while (mState.isPaused()) {
+            // commands unpark us too
+            mState.awaitNotPaused();
+            if (!processCommands(true)) return false;
         }
+        return true;
     }
 
-    public void asyncStart(){
-        // extractor gets information about the stream
-        mExtractor = new MediaExtractor();
-        // try to set the source, this might fail
-        try {
-            if (mSourcePath != null) mExtractor.setDataSource(this.mSourcePath);
-            if (sourceRawResId != -1) {
-                AssetFileDescriptor fd = mContext.getResources().openRawResourceFd(sourceRawResId);
-                mExtractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getDeclaredLength());
-                fd.close();
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "exception:" + e.getMessage());
-            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
-            return;
+    /**
+     * @return a decoder for the source set with setDataSource
+     */
+    private TrackDecoder newSourceDeck() {
+        return (mSourcePath != null) ? new TrackDecoder(mSourcePath, mDecoderPool) : new TrackDecoder(mContext, sourceRawResId, mDecoderPool);
+    }
+
+    /**
+     * Report a failure while preparing the synchronous playback
+     */
+    private void prepareFailed() {
+        mState.moveTo(PlayerStates.ERROR);
+        if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
+    }
+
+    /**
+     * Start playback in asynchronous mode, returns right away: opening the source, creating the
+     * codec and the AudioTrack, and every codec callback run on a dedicated audio priority thread.
+     * Only called by {@link #asynchronousPlay}, which moves the state to PREPARING and sets up the startup trace
+     */
+    private void asyncStart(){
+        // commands are drained from codec thread messages, nothing to unpark
+        mCommands.setConsumer(null);
+        mCommandDrainScheduled.set(false);
+        if (mCodecThread == null) {
+            mCodecThread = new HandlerThread("JPlayer-codec", android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            mCodecThread.start();
         }
+        mCodecHandler = new Handler(mCodecThread.getLooper());
+        mCodecHandler.post(new Runnable() { @Override public void run() { asyncPrepare();  } });
+    }
 
-        // Read track header
-
-        try {
-            mFormat = mExtractor.getTrackFormat(0);
-            mime = mFormat.getString(MediaFormat.KEY_MIME);
-            sampleRate = mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            channels = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-            // if duration is 0, we are probably playing a live stream
-            duration = mFormat.getLong(MediaFormat.KEY_DURATION);
-            bitrate = mFormat.getInteger(MediaFormat.KEY_BIT_RATE);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Reading format parameters exception:"+e.getMessage());
-            // don't exit, tolerate this error, we'll fail later if this is critical
+    /**
+     * Release everything the asynchronous mode owns, runs on the codec thread
+     * @param error true to report an error instead of a normal stop
+     */
+    private void asyncRelease(boolean error) {
+        Log.d(LOG_TAG, "stopping...");
+        if (mRenderer != null) {
+            mRenderer.stop();
+            mRenderer.join();
+            mRenderer = null;
+        }
+        mPcmRing = null;
+        mClock = null;
+        mPendingOutput.clear();
+        if (mDeck != null) {
+            mDeck.release();
+            mDeck = null;
         }
-        Log.d(LOG_TAG, "Track info: mime:" + mime + " sampleRate:" + sampleRate + " channels:" + channels + " bitrate:" + bitrate + " duration:" + duration);
+        mCodec = null;
+        mExtractor = null;
+        // the thread stays, for the decoders it created
+        mCodecHandler = null;
 
-        // check we have audio content we know
-        if (mFormat == null || !mime.startsWith("audio/")) {
+        mPositionReporter.stop();
+        mState.moveTo(error ? PlayerStates.ERROR : PlayerStates.STOPPED);
+        stop = true;
+        if (error) {
             if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
-            return;
+        } else {
+            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStop();  } });
         }
-        // create the actual decoder, using the mime to select
-        try{
-            mCodec = MediaCodec.createDecoderByType(mime);
-        }catch (IOException error){
-            Log.e("LOG_TAG", "Create decoder error: " + error);
-            error.printStackTrace();
-            return;
+    }
+
+    /**
+     * Write the recent decode loop events to the log, on the thread writing them
+     */
+    private void dumpEventLog() {
+        Log.e(LOG_TAG, "last decoder events:");
+        for (String line : mEventLog.dump().split("\n")) Log.e(LOG_TAG, line);
+    }
+
+    /**
+     * Copy pending output buffers into the PCM ring, in order, as far as there is room.
+     * Runs on the codec thread, when a new output buffer arrives and when the render thread drained the ring
+     */
+    private void asyncDrainPendingOutput() {
+        PcmRingBuffer ring = mPcmRing;
+        if (mCodec == null || ring == null) return;
+
+        while (!mPendingOutput.isEmpty()) {
+            if (mPendingOutput.peekIndex() < 0) {
+                // no marker slot left, the render thread frees them as it reads, try again shortly
+                if (!tryAddFormatChange(ring, (AudioRenderer.FormatChange) mPendingOutput.peekMarker())) {
+                    Handler handler = mCodecHandler;
+                    if (handler != null) {
+                        handler.removeCallbacks(mDrainPendingOutput);
+                        handler.postDelayed(mDrainPendingOutput, 10);
+                    }
+                    return;
+                }
+                mPendingOutput.remove();
+                continue;
+            }
+            ByteBuffer outputBuffer = mPendingOutput.peekBuffer();
+            ring.write(outputBuffer);
+            // no room left, we'll be called again once the render thread reaches the low watermark
+            if (outputBuffer.hasRemaining()) return;
+
+            int outputBufferId = mPendingOutput.peekIndex();
+            int flags = mPendingOutput.peekFlags();
+            mPendingOutput.remove();
+            mCodec.releaseOutputBuffer(outputBufferId, false);
+            if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Log.d(LOG_TAG, "saw output EOS.");
+                // the render thread plays what is left and then releases everything
+                ring.setEndOfStream();
+            }
         }
+    }
 
-        // check we have a valid codec instance
-        if (mCodec == null) {
-            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
+    private void asyncPrepare(){
+        // open the source and create the decoder, its callbacks are delivered on the looper of
+        // the thread creating it, our codec thread
+        mEventLog.clear();
+        TrackDecoder deck = newSourceDeck();
+        deck.setStartupTrace(mStartupTrace);
+        if (!deck.open(true)) {
+            deck.release();
+            asyncRelease(true);
             return;
         }
+        setCurrentDeck(deck);
+        mDiscardUntilUs = -1;
 
         //mState.set(PlayerStates.READY_TO_PLAY);
         if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStart(mime, sampleRate, channels, duration);  } });
@@ -194,24 +932,36 @@ public class JPlayer implements Runnable {
 
         //NJ since lollipop, it is preferred to use asynchronous handing of codec class
 
-        mCodec.setCallback(new MediaCodec.Callback() {
+        deck.setCallback(new MediaCodec.Callback() {
             @Override
             public void onInputBufferAvailable(MediaCodec mc, int inputBufferId) {
+                if (mCodec == null) return;
+                mPowerStats.onWakeup();
+                if (!processCommands(false)) {
+                    asyncRelease(false);
+                    return;
+                }
+                boolean tracing = SysTrace.isEnabled();
                 ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferId);
                 //NJ: fill inputBuffer with valid data
+                if (tracing) SysTrace.beginSection(TRACE_READ_SAMPLE);
                 int sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                if (tracing) SysTrace.endSection();
                 boolean sawInputEOS = false;
                 if (sampleSize < 0) {
                     Log.d(LOG_TAG, "saw input EOS. Stopping playback");
+                    mEventLog.log(EventLog.INPUT_EOS, presentationTimeUs);
                     sawInputEOS = true;
                     sampleSize = 0;
                 } else {
                     sawInputEOS = false;
                     presentationTimeUs = mExtractor.getSampleTime();
-                    final int percent =  (duration == 0)? 0 : (int) (100 * presentationTimeUs / duration);
-                    if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onPlayUpdate(percent, presentationTimeUs / 1000, duration / 1000);  } });
                 }
+                if (tracing) SysTrace.beginSection(TRACE_QUEUE_INPUT);
                 mCodec.queueInputBuffer(inputBufferId, 0, sampleSize, presentationTimeUs, sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                if (tracing) SysTrace.endSection();
+                mStartupTrace.mark(StartupTrace.FIRST_INPUT);
+                if (!sawInputEOS) mMetrics.onInputQueued(presentationTimeUs);
 
                 if (!sawInputEOS) mExtractor.advance();
 
@@ -220,223 +970,323 @@ public class JPlayer implements Runnable {
 
             @Override
             public void onOutputBufferAvailable(MediaCodec mc, int outputBufferId, MediaCodec.BufferInfo info) {
+                if (mCodec == null) return;
+                mPowerStats.onWakeup();
+                mCodecCpuNanos = mPowerStats.addThreadCpuTime(mCodecCpuNanos);
+                if (!processCommands(false)) {
+                    mCodec.releaseOutputBuffer(outputBufferId, false);
+                    asyncRelease(false);
+                    return;
+                }
                 ByteBuffer outputBuffer = mCodec.getOutputBuffer(outputBufferId);
-                MediaFormat bufferFormat = mCodec.getOutputFormat(outputBufferId); // option A
-                // bufferFormat is equivalent to mOutputFormat
+                if (info.size > 0) {
+                    mStartupTrace.mark(StartupTrace.FIRST_OUTPUT);
+                    mMetrics.onOutputDecoded(info.presentationTimeUs);
+                }
                 // outputBuffer is ready to be processed or rendered.
-                //NJ: write to audiotrack
-
-                final byte[] chunk = new byte[info.size];
-                outputBuffer.get(chunk);
-                outputBuffer.clear();
-                if(chunk.length > 0){
-                    mAudioTrack.write(chunk,0,chunk.length);
-                	/*if(this.mState.get() != PlayerStates.PLAYING) {
-                		if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onPlay();  } });
-            			mState.set(PlayerStates.PLAYING);
-                	}*/
-
+                //NJ: queue it for the PCM ring, the render thread writes to the audiotrack
+                outputBuffer.position(info.offset);
+                outputBuffer.limit(info.offset + info.size);
+                discardBeforeSeekTarget(outputBuffer, info.presentationTimeUs, mDeck.info.getFrameSize());
+                mPendingOutput.add(outputBufferId, outputBuffer, info.flags);
+                asyncDrainPendingOutput();
+                if (SysTrace.isEnabled()) {
+                    SysTrace.setCounter(TRACE_PENDING_OUTPUT, mPendingOutput.size());
+                    SysTrace.setCounter(TRACE_PCM_BUFFER_MS, getPcmBufferFillMs());
                 }
-                mCodec.releaseOutputBuffer(outputBufferId,false);
             }
 
             @Override
             public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
-                // Subsequent data will conform to new format.
-                // Can ignore if using getOutputFormat(outputBufferId)
+                // Subsequent data will conform to new format, the sink switches after the buffers already pending
                 mFormat = format;
+                AudioRenderer.FormatChange change = JPlayer.this.onOutputFormatChanged(format);
+                if (change != null) {
+                    mPendingOutput.addMarker(change);
+                    asyncDrainPendingOutput();
+                }
 
             }
 
             @Override
             public void onError(MediaCodec codec, MediaCodec.CodecException e) {
-
+                Log.e(LOG_TAG, "codec error: " + e.getMessage());
+                mEventLog.log(EventLog.CODEC_ERROR);
+                dumpEventLog();
+                if (mCodec != null) asyncRelease(true);
             }
         });
 
         mCodec.configure(mFormat, null, null, 0);
-
-        // configure AudioTrack
-        int channelConfiguration = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
-        int minSize = AudioTrack.getMinBufferSize( sampleRate, channelConfiguration, AudioFormat.ENCODING_PCM_16BIT);
-        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfiguration,
-                AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
-
-        // start playing, we will feed the AudioTrack later
-        mAudioTrack.play();
+        mStartupTrace.mark(StartupTrace.CONFIGURE);
         mExtractor.selectTrack(0);
 
+        PcmRingBuffer ring = createPcmRing(deck.info.getFrameSize());
+        final Handler codecHandler = mCodecHandler;
+        ring.setLowWatermarkListener(new Runnable() { @Override public void run() { codecHandler.post(mDrainPendingOutput);  } });
+        mPcmRing = ring;
+        mClock = new PlaybackClock(sampleRate);
+        mClock.reset(0);
+        mPositionReporter.start(duration, mClock);
+        mPowerStats.start();
+        mCodecCpuNanos = mPowerStats.addThreadCpuTime(0);
+        mRenderer = new AudioRenderer(deck.info, ring, mState, mPcmPool, mAudioTrackPool, mClock);
+        mRenderer.setPowerStats(mPowerStats);
+        mRenderer.setMetrics(mMetrics);
+        mRenderer.setStartupTrace(mStartupTrace, mStartupTraceDone);
+        mRenderer.setFloatPipeline(mFloatOutput);
+        mRenderer.setResampleQuality(mResampleQuality);
+        mRenderer.setOutputMode(mOutputMode);
+        mSinkInfo = deck.info;
+        mRenderer.setCompletionListener(new Runnable() { @Override public void run() {
+            codecHandler.post(new Runnable() { @Override public void run() { if (mCodec != null) asyncRelease(false);  } });
+        } });
+        mRenderer.start();
+        mState.transition(PlayerStates.PREPARING, PlayerStates.BUFFERING);
+
         //NJ: once start, the callbacks will be called
         mCodec.start();
-
-
-
-
-
+        mStartupTrace.mark(StartupTrace.START);
     }
 
     @Override
     public void run() {
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-
-        // extractor gets information about the stream
-        mExtractor = new MediaExtractor();
-        // try to set the source, this might fail
-        try {
-            if (mSourcePath != null) mExtractor.setDataSource(this.mSourcePath);
-            if (sourceRawResId != -1) {
-                AssetFileDescriptor fd = mContext.getResources().openRawResourceFd(sourceRawResId);
-                mExtractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getDeclaredLength());
-                fd.close();
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "exception:" + e.getMessage());
-            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
-            return;
-        }
-
-        // Read track header
-        MediaFormat format = null;
-        try {
-            format = mExtractor.getTrackFormat(0);
-            mime = format.getString(MediaFormat.KEY_MIME);
-            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-            // if duration is 0, we are probably playing a live stream
-            duration = format.getLong(MediaFormat.KEY_DURATION);
-            bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Reading format parameters exception:"+e.getMessage());
-            // don't exit, tolerate this error, we'll fail later if this is critical
-        }
-        Log.d(LOG_TAG, "Track info: mime:" + mime + " sampleRate:" + sampleRate + " channels:" + channels + " bitrate:" + bitrate + " duration:" + duration);
-
-        // check we have audio content we know
-        if (format == null || !mime.startsWith("audio/")) {
-            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
-            return;
-        }
-        // create the actual decoder, using the mime to select
-        try{
-            mCodec = MediaCodec.createDecoderByType(mime);
-        }catch (IOException error){
-            Log.e("LOG_TAG", "Create decoder error: " +error);
-            error.printStackTrace();
-            return;
-        }
-
-        // check we have a valid codec instance
-        if (mCodec == null) {
-            if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
+        mCommands.setConsumer(Thread.currentThread());
+        mEventLog.clear();
+
+        // open the source and create the decoder
+        TrackDecoder deck = newSourceDeck();
+        deck.setStartupTrace(mStartupTrace);
+        if (!deck.open(false)) {
+            deck.release();
+            prepareFailed();
             return;
         }
+        setCurrentDeck(deck);
+        mDiscardUntilUs = -1;
 
         //mState.set(PlayerStates.READY_TO_PLAY);
         if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStart(mime, sampleRate, channels, duration);  } });
 
-        mCodec.configure(format, null, null, 0);
-        mCodec.start();
+        deck.start();
         ByteBuffer[] codecInputBuffers  = mCodec.getInputBuffers();
         ByteBuffer[] codecOutputBuffers = mCodec.getOutputBuffers();
 
-        // configure AudioTrack
-        int channelConfiguration = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
-        int minSize = AudioTrack.getMinBufferSize( sampleRate, channelConfiguration, AudioFormat.ENCODING_PCM_16BIT);
-        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfiguration,
-                AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
-
-        // start playing, we will feed the AudioTrack later
-        mAudioTrack.play();
-        mExtractor.selectTrack(0);
+        PcmRingBuffer ring = createPcmRing(deck.info.getFrameSize());
+        mPcmRing = ring;
+        mClock = new PlaybackClock(sampleRate);
+        mClock.reset(0);
+        mPositionReporter.start(duration, mClock);
+        mPowerStats.start();
+        mRenderer = new AudioRenderer(deck.info, ring, mState, mPcmPool, mAudioTrackPool, mClock);
+        mRenderer.setPowerStats(mPowerStats);
+        mRenderer.setMetrics(mMetrics);
+        mRenderer.setStartupTrace(mStartupTrace, mStartupTraceDone);
+        mRenderer.setFloatPipeline(mFloatOutput);
+        mRenderer.setResampleQuality(mResampleQuality);
+        mRenderer.setOutputMode(mOutputMode);
+        mSinkInfo = deck.info;
+        mRenderer.setTrackListener(mTrackListener);
+        mRenderer.start();
+        startTrimming(ring);
+        // get the next queued source ready while this one plays
+        startPreroll();
 
         // start decoding
-        final long kTimeOutUs = 1000;
+        long cpuNanos = mPowerStats.addThreadCpuTime(0);
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
         boolean sawInputEOS = false;
         boolean sawOutputEOS = false;
-        int noOutputCounter = 0;
-        int noOutputCounterLimit = 10;
+        boolean stalled = false;
+        mScheduler.reset();
+
+        mState.transition(PlayerStates.PREPARING, PlayerStates.BUFFERING);
+        while (!sawOutputEOS && !stalled && !stop) {
+
+            mPowerStats.onWakeup();
+            // apply control commands, pause implementation
+            if (!waitPlay()) break;
+            if (mSeekApplied) {
+                mSeekApplied = false;
+                sawInputEOS = false;
+                mScheduler.reset();
+                // the seek may have ended a crossfade, the codec is another one
+                codecInputBuffers  = mCodec.getInputBuffers();
+                codecOutputBuffers = mCodec.getOutputBuffers();
+            }
 
-        mState.set(PlayerStates.PLAYING);
-        while (!sawOutputEOS && noOutputCounter < noOutputCounterLimit && !stop) {
+            // enough decoded audio is queued, let the render thread drain some of it
+            if (ring.isAboveHighWatermark()) {
+                cpuNanos = mPowerStats.addThreadCpuTime(cpuNanos);
+                // commands and the ring wake us up, the timeout is only a safety net
+                ring.awaitLowWatermark(mOutputMode.isDeepBuffer() ? 1000000 : 100000);
+                continue;
+            }
 
-            // pause implementation
-            waitPlay();
+            // codec timeouts sized from what the render thread still has to play
+            long bufferedUs = getPcmBufferFillMs() * 1000L;
+            long timeoutUs = mScheduler.getTimeoutUs(bufferedUs);
+            long passStart = System.nanoTime();
+            boolean busy = false, decoded = false, inputUnavailable = false;
+            // checked once per pass, so the sections of a pass stay balanced
+            boolean tracing = SysTrace.isEnabled();
+            if (tracing) SysTrace.setCounter(TRACE_PCM_BUFFER_MS, bufferedUs / 1000);
 
-            noOutputCounter++;
             // read a buffer before feeding it to the decoder
             if (!sawInputEOS) {
-                int inputBufIndex = mCodec.dequeueInputBuffer(kTimeOutUs);
+                if (tracing) SysTrace.beginSection(TRACE_DEQUEUE_INPUT);
+                int inputBufIndex = mCodec.dequeueInputBuffer(timeoutUs);
+                if (tracing) SysTrace.endSection();
                 if (inputBufIndex >= 0) {
+                    busy = true;
                     ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
+                    if (tracing) SysTrace.beginSection(TRACE_READ_SAMPLE);
                     int sampleSize = mExtractor.readSampleData(dstBuf, 0);
+                    if (tracing) SysTrace.endSection();
                     if (sampleSize < 0) {
                         Log.d(LOG_TAG, "saw input EOS. Stopping playback");
+                        mEventLog.log(EventLog.INPUT_EOS, presentationTimeUs);
                         sawInputEOS = true;
                         sampleSize = 0;
+                        // a source may have been queued since this one started
+                        startPreroll();
                     } else {
                         presentationTimeUs = mExtractor.getSampleTime();
-                        final int percent =  (duration == 0)? 0 : (int) (100 * presentationTimeUs / duration);
-                        if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onPlayUpdate(percent, presentationTimeUs / 1000, duration / 1000);  } });
                     }
 
+                    if (tracing) SysTrace.beginSection(TRACE_QUEUE_INPUT);
                     mCodec.queueInputBuffer(inputBufIndex, 0, sampleSize, presentationTimeUs, sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    if (tracing) SysTrace.endSection();
+                    mStartupTrace.mark(StartupTrace.FIRST_INPUT);
+                    if (!sawInputEOS) mMetrics.onInputQueued(presentationTimeUs);
 
                     if (!sawInputEOS) mExtractor.advance();
 
                 } else {
-                    Log.e(LOG_TAG, "inputBufIndex " +inputBufIndex);
+                    inputUnavailable = true;
                 }
             } // !sawInputEOS
 
             // decode to PCM and push it to the AudioTrack player
-            int res = mCodec.dequeueOutputBuffer(info, kTimeOutUs);
+            if (tracing) SysTrace.beginSection(TRACE_DEQUEUE_OUTPUT);
+            int res = mCodec.dequeueOutputBuffer(info, timeoutUs);
+            if (tracing) SysTrace.endSection();
+            long waitedUs = (System.nanoTime() - passStart) / 1000;
+            if (res != MediaCodec.INFO_TRY_AGAIN_LATER) busy = true;
+            // an idle pass is one event, so that idle passes in a row take a single log entry
+            if (res == MediaCodec.INFO_TRY_AGAIN_LATER) mEventLog.log(inputUnavailable ? EventLog.IDLE_PASS : EventLog.OUTPUT_TRY_AGAIN);
+            else if (inputUnavailable) mEventLog.log(EventLog.INPUT_UNAVAILABLE);
 
             if (res >= 0) {
-                if (info.size > 0)  noOutputCounter = 0;
+                decoded = info.size > 0;
+                if (decoded) {
+                    mStartupTrace.mark(StartupTrace.FIRST_OUTPUT);
+                    mMetrics.onOutputDecoded(info.presentationTimeUs);
+                }
 
                 int outputBufIndex = res;
                 ByteBuffer buf = codecOutputBuffers[outputBufIndex];
 
-                final byte[] chunk = new byte[info.size];
-                buf.get(chunk);
-                buf.clear();
-                if(chunk.length > 0){
-                    mAudioTrack.write(chunk,0,chunk.length);
-                	/*if(this.mState.get() != PlayerStates.PLAYING) {
-                		if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onPlay();  } });
-            			mState.set(PlayerStates.PLAYING);
-                	}*/
-
+                // hand the PCM over to the render thread, only waits if the ring is completely full
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                trimEncoderDelay(buf);
+                discardBeforeSeekTarget(buf, info.presentationTimeUs, mDeck.info.getFrameSize());
+                if (mCrossfader.isActive()) {
+                    // mix waits a little for the incoming decoder when it has nothing yet
+                    while (buf.hasRemaining() && !stop && mPendingSeekUs.get() < 0 && !mCrossfader.isAborted()) writePcm(ring, mCrossfader.mix(buf));
+                } else {
+                    writePcm(ring, buf);
+                    if (!stop && shouldStartCrossfade(info.presentationTimeUs)) startCrossfade(ring, info.presentationTimeUs);
                 }
+                buf.clear();
                 mCodec.releaseOutputBuffer(outputBufIndex, false);
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(LOG_TAG, "saw output EOS.");
-                    sawOutputEOS = true;
+                boolean outputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                // an aborted crossfade cuts the outgoing track here
+                if (outputEOS || mCrossfader.isAborted()) {
+                    if (outputEOS) {
+                        Log.d(LOG_TAG, "saw output EOS.");
+                        mEventLog.log(EventLog.OUTPUT_EOS, info.presentationTimeUs);
+                    }
+                    boolean trackEnded = true;
+                    if (mCrossfader.isActive()) {
+                        // the incoming track goes on alone, with what it decoded so far first
+                        writePcm(ring, mCrossfader.drain());
+                        sawInputEOS = mCrossfader.isInputDone();
+                        trackEnded = mCrossfader.isOutputDone();
+                        MediaFormat changed = mCrossfader.getChangedFormat();
+                        completeCrossfade(ring);
+                        // what it decodes from now on is in its new format
+                        if (changed != null) {
+                            AudioRenderer.FormatChange change = onOutputFormatChanged(changed);
+                            if (change != null) addFormatChange(ring, change);
+                        }
+                    }
+                    if (trackEnded) {
+                        TrackDecoder next = stop ? null : takeNextDeck();
+                        if (next == null) {
+                            sawOutputEOS = true;
+                        } else {
+                            spliceNextDeck(next, ring);
+                            sawInputEOS = false;
+                        }
+                    }
+                    if (!sawOutputEOS) {
+                        codecInputBuffers  = mCodec.getInputBuffers();
+                        codecOutputBuffers = mCodec.getOutputBuffers();
+                        mScheduler.reset();
+                    }
                 }
             } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 codecOutputBuffers = mCodec.getOutputBuffers();
-                Log.d(LOG_TAG, "output buffers have changed.");
+                mEventLog.log(EventLog.OUTPUT_BUFFERS_CHANGED);
             } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat oformat = mCodec.getOutputFormat();
-                Log.d(LOG_TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(LOG_TAG, "dequeueOutputBuffer returned " + res);
+                AudioRenderer.FormatChange change = onOutputFormatChanged(mCodec.getOutputFormat());
+                if (change != null) addFormatChange(ring, change);
+            } else if (res != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                mEventLog.log(EventLog.OUTPUT_UNKNOWN, res);
+            }
+
+            if (mScheduler.onPass(waitedUs, busy, decoded, bufferedUs)) {
+                Log.e(LOG_TAG, "no decoder output for " + DecodeScheduler.STALL_TIMEOUT_US / 1000 + "ms, giving up");
+                mEventLog.log(EventLog.STALL, DecodeScheduler.STALL_TIMEOUT_US);
+                dumpEventLog();
+                stalled = true;
             }
         }
 
         Log.d(LOG_TAG, "stopping...");
+        mPowerStats.addThreadCpuTime(cpuNanos);
 
-        if(mCodec != null) {
-            mCodec.stop();
-            mCodec.release();
-            mCodec = null;
-        }
-        if(mAudioTrack != null) {
-            mAudioTrack.flush();
-            mAudioTrack.release();
-            mAudioTrack = null;
+        // let the render thread play what is left, unless we were stopped
+        if (stop || !sawOutputEOS) {
+            mRenderer.stop();
+        } else {
+            // the last track's padding is not played
+            ring.dropHoldback();
+            ring.setEndOfStream();
+            // it plays what is left, seconds in the deep buffer mode, forever if paused: keep
+            // listening to commands meanwhile, they unpark us
+            while (!mRenderer.isFinished()) {
+                mRenderer.awaitFinished(1000000);
+                if (!processCommands(false)) mRenderer.stop();
+            }
         }
+        mRenderer.join();
+        mRenderer = null;
+        mPcmRing = null;
+        mClock = null;
+
+        mCrossfader.cancel();
+        mDeck.release();
+        mDeck = null;
+        mCodec = null;
+        mExtractor = null;
+        // whatever is left in the queue is dropped
+        mNextSources.clear();
+        TrackDecoder next = takeNextDeck();
+        if (next != null) next.release();
 
         // clear source and the other globals
         mSourcePath = null;
@@ -447,10 +1297,12 @@ public class JPlayer implements Runnable {
         presentationTimeUs = 0; duration = 0;
 
 
-        mState.set(PlayerStates.STOPPED);
+        mPositionReporter.stop();
+        mCommands.setConsumer(null);
+        mState.moveTo(stalled ? PlayerStates.ERROR : PlayerStates.STOPPED);
         stop = true;
 
-        if(noOutputCounter >= noOutputCounterLimit) {
+        if (stalled) {
             if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onError();  } });
         } else {
             if (mEvents != null) mHandler.post(new Runnable() { @Override public void run() { mEvents.onStop();  } });
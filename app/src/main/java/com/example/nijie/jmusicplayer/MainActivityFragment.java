@@ -24,6 +24,8 @@ public class MainActivityFragment extends Fragment implements View.OnClickListen
     SeekBar seekbar;
     EditText et;
     TextView tv;
+    // the user is dragging the seek bar, don't move it under their finger
+    boolean seeking = false;
 
     PlayerEvents events = new PlayerEvents() {
         @Override public void onStop() {
@@ -39,7 +41,7 @@ public class MainActivityFragment extends Fragment implements View.OnClickListen
             tv.setText("Playing content:" + mime + " " + sampleRate + "Hz " + (duration/1000000) + "sec");
         }
         @Override public void onPlayUpdate(int percent, long currentms, long totalms) {
-            seekbar.setProgress(percent);
+            if (!seeking) seekbar.setProgress(percent);
         }
         @Override public void onPlay() {
         }
@@ -48,6 +50,9 @@ public class MainActivityFragment extends Fragment implements View.OnClickListen
             Toast.makeText(getActivity(), "Error!",  Toast.LENGTH_SHORT).show();
             tv.setText("An error has been encountered");
         }
+        @Override public void onStartupTrace(StartupTrace trace) {
+            Log.d(LOG_TAG, trace.toString());
+        }
     };
 
     JPlayer p = new JPlayer(events);
@@ -74,9 +79,10 @@ public class MainActivityFragment extends Fragment implements View.OnClickListen
 
         seekbar = (SeekBar)rootView.findViewById(R.id.IDSEEKBAR);
         seekbar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
-            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
-            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) { seeking = false; }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) { seeking = true; }
             @Override public void onProgressChanged(SeekBar seekBar, int progress,boolean fromUser) {
+                // JPlayer coalesces these, only the latest position is actually seeked to
                 if (fromUser) p.seek(progress);
             }
         });
@@ -88,6 +94,13 @@ public class MainActivityFragment extends Fragment implements View.OnClickListen
 
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        // in the background, don't keep idle decoders and audio tracks around
+        p.releaseIdleResources();
+    }
+
     @Override
     public void onClick(View v) {
         int id = v.getId();
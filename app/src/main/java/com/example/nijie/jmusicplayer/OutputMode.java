@@ -0,0 +1,135 @@
+package com.example.nijie.jmusicplayer;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * How the AudioTrack is set up.
+ *
+ * NORMAL is the minimum buffer size at the track rate (or the native rate when resampling is enabled).
+ * LOW_LATENCY runs at the device native rate, writes a native burst (PROPERTY_OUTPUT_FRAMES_PER_BUFFER)
+ * at a time and starts rendering with less audio buffered. The AudioTrack buffer is only rounded up to
+ * whole bursts: a track can't be made smaller than getMinBufferSize, and no fast track can be
+ * requested at this SDK level (the flag and the track builder came later), so the track latency
+ * itself is the one of NORMAL. {@link JPlayer#getOutputLatencyUs} tells what is actually achieved.
+ * DEEP_BUFFER saves power for long background listening: a large AudioTrack buffer refilled half a
+ * buffer at a time, and a deep PCM buffer decoded in bursts, the threads sleeping in between.
+ */
+public class OutputMode {
+    public static final int NORMAL = 0;
+    public static final int LOW_LATENCY = 1;
+    public static final int DEEP_BUFFER = 2;
+
+    // audio buffered before rendering starts, in the low latency mode
+    private static final int LOW_LATENCY_PREBUFFER_MS = 20;
+
+    // AudioTrack buffer of the deep buffer mode, and the PCM buffer decoded in bursts from its low to its high watermark
+    private static final int DEEP_BUFFER_MS = 1000;
+    private static final int DEEP_RING_MS = 4000;
+    private static final int DEEP_RING_LOW_WATERMARK_MS = 1000;
+    private static final int DEEP_RING_HIGH_WATERMARK_MS = 3500;
+    // room kept above the high watermark for the codec buffer that crosses it, so the decode
+    // thread sees the watermark and sleeps instead of waiting for space buffer after buffer
+    private static final int DEEP_RING_MARGIN_MS = 500;
+    // bytes read from the ring and written to the AudioTrack at a time
+    private static final int CHUNK_SIZE = 4096;
+    private static final int DEEP_CHUNK_SIZE = 65536;
+
+    private static final OutputMode sNormal = new OutputMode(NORMAL, 0, 0);
+    private static final OutputMode sDeepBuffer = new OutputMode(DEEP_BUFFER, 0, 0);
+
+    public final int mode;
+    // device output, 0 when unknown
+    public final int nativeSampleRate;
+    public final int framesPerBurst;
+
+    private OutputMode(int mode, int nativeSampleRate, int framesPerBurst) {
+        this.mode = mode;
+        this.nativeSampleRate = nativeSampleRate;
+        this.framesPerBurst = framesPerBurst;
+    }
+
+    public static OutputMode normal() {
+        return sNormal;
+    }
+
+    /**
+     * @param context to query the device output properties
+     */
+    public static OutputMode lowLatency(Context context) {
+        AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        return new OutputMode(LOW_LATENCY, parseProperty(am.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE)),
+                parseProperty(am.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER)));
+    }
+
+    public static OutputMode deepBuffer() {
+        return sDeepBuffer;
+    }
+
+    public boolean isLowLatency() {
+        return mode == LOW_LATENCY;
+    }
+
+    public boolean isDeepBuffer() {
+        return mode == DEEP_BUFFER;
+    }
+
+    /**
+     * @return AudioTrack buffer size in bytes
+     */
+    public int getBufferSize(int sampleRate, int channelConfiguration, int encoding) {
+        int minSize = AudioTrack.getMinBufferSize(sampleRate, channelConfiguration, encoding);
+        int frameSize = Integer.bitCount(channelConfiguration) * (encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+        if (isDeepBuffer() && minSize > 0) return Math.max(minSize, sampleRate * DEEP_BUFFER_MS / 1000 * frameSize);
+        if (!isLowLatency() || framesPerBurst <= 0 || minSize <= 0) return minSize;
+        // can't go below the minimum size of the normal mixer, only rounded up to whole bursts so
+        // every mixer cycle takes a full burst from the track
+        int burstSize = framesPerBurst * frameSize;
+        return (minSize + burstSize - 1) / burstSize * burstSize;
+    }
+
+    /**
+     * @param lowWatermarkMs the configured PCM buffer low watermark
+     * @return the one to use in this mode
+     */
+    public int getLowWatermarkMs(int lowWatermarkMs) {
+        if (isDeepBuffer()) return Math.max(lowWatermarkMs, DEEP_RING_LOW_WATERMARK_MS);
+        return isLowLatency() ? Math.min(lowWatermarkMs, LOW_LATENCY_PREBUFFER_MS) : lowWatermarkMs;
+    }
+
+    /**
+     * @param highWatermarkMs the configured PCM buffer high watermark
+     * @param depthMs the configured PCM buffer depth
+     * @return the one to use in this mode, kept a margin below the buffer depth in the deep buffer mode
+     */
+    public int getHighWatermarkMs(int highWatermarkMs, int depthMs) {
+        if (!isDeepBuffer()) return highWatermarkMs;
+        return Math.min(Math.max(highWatermarkMs, DEEP_RING_HIGH_WATERMARK_MS), getRingDepthMs(depthMs) - DEEP_RING_MARGIN_MS);
+    }
+
+    /**
+     * @param depthMs the configured PCM buffer depth
+     * @return the one to use in this mode
+     */
+    public int getRingDepthMs(int depthMs) {
+        return isDeepBuffer() ? Math.max(depthMs, DEEP_RING_MS) : depthMs;
+    }
+
+    /**
+     * @return bytes of PCM read from the ring and written to the AudioTrack at a time, at most
+     */
+    public int getChunkSize() {
+        return isDeepBuffer() ? DEEP_CHUNK_SIZE : CHUNK_SIZE;
+    }
+
+    private static int parseProperty(String value) {
+        if (value == null) return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.nijie.jmusicplayer;
+
+/**
+ * A small pool of reusable PCM byte arrays used to move decoded audio from the codec
+ * output buffers to the AudioTrack.
+ *
+ * Arrays are only allocated while the pool warms up (or when a bigger buffer than ever
+ * seen before shows up); in steady state acquire/release allocate nothing.
+ */
+public class PcmBufferPool {
+    private static final int MIN_BUFFER_SIZE = 4096;
+
+    private final byte[][] mFree;
+    private int mFreeCount = 0;
+
+    public PcmBufferPool(int capacity) {
+        mFree = new byte[capacity][];
+    }
+
+    /**
+     * Get a buffer that can hold at least minSize bytes
+     * @param minSize
+     * @return a pooled buffer, or a new one if none of the free buffers is big enough
+     */
+    public synchronized byte[] acquire(int minSize) {
+        for (int i = mFreeCount - 1; i >= 0; i--) {
+            byte[] buf = mFree[i];
+            if (buf.length >= minSize) {
+                // keep the free list packed
+                mFree[i] = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+                return buf;
+            }
+        }
+        return new byte[roundUp(minSize)];
+    }
+
+    /**
+     * Give a buffer back to the pool, it is dropped if the pool is already full
+     * @param buf
+     */
+    public synchronized void release(byte[] buf) {
+        if (buf == null || mFreeCount == mFree.length) return;
+        mFree[mFreeCount++] = buf;
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+
+    /**
+     * Round to the next power of two so a slowly growing buffer size doesn't reallocate every time
+     */
+    private static int roundUp(int size) {
+        if (size <= MIN_BUFFER_SIZE) return MIN_BUFFER_SIZE;
+        int n = Integer.highestOneBit(size);
+        return (n == size) ? n : n << 1;
+    }
+}
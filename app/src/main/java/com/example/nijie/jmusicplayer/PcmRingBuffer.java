@@ -0,0 +1,343 @@
+package com.example.nijie.jmusicplayer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer / single consumer ring buffer of PCM bytes, used between the decode thread
+ * (producer) and the audio render thread (consumer).
+ *
+ * The read and write positions are only ever advanced by their own side, so no locks are needed:
+ * each side publishes its position with an ordered store and reads the other one.
+ *
+ * Watermarks:
+ *  - the producer stops decoding once the fill level reaches the high watermark and is woken up
+ *    again when the consumer drains it down to the low watermark
+ *  - the consumer (re)starts rendering, at start or after an underrun, only once the fill level
+ *    is above the low watermark, so short decoder stalls don't turn into audible underruns
+ *
+ * For gapless playback the producer can hold back the last bytes it wrote (the encoder padding of a
+ * track, only known to be padding at end of stream) and insert markers between tracks: reads stop
+ * at a marker until the consumer took it with {@link #pollMarker}.
+ */
+public class PcmRingBuffer {
+    private static final int MAX_MARKERS = 8;
+
+    private final byte[] mBuffer;
+    private volatile int mFrameSize;
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+
+    private final AtomicLong mWritePos = new AtomicLong(0);
+    private final AtomicLong mReadPos = new AtomicLong(0);
+    private volatile boolean mEndOfStream = false;
+
+    // producer only: everything written, mWritePos lags behind it by the holdback
+    private long mPendingPos = 0;
+    private int mHoldback = 0;
+    private int mHoldbackFrames = 0;
+
+    // markers, in position order, added by the producer at mMarkerTail and taken by the consumer at mMarkerHead
+    private final long[] mMarkerPos = new long[MAX_MARKERS];
+    private final Object[] mMarkers = new Object[MAX_MARKERS];
+    private volatile int mMarkerHead = 0;
+    private volatile int mMarkerTail = 0;
+
+    // flush requested by the producer: the consumer skips everything before mFlushPos
+    private volatile long mFlushPos = 0;
+    private volatile int mFlushCount = 0;
+    private int mFlushSeen = 0;
+
+    // threads currently parked waiting on the other side, if any
+    private volatile Thread mWaitingProducer = null;
+    private volatile Thread mWaitingConsumer = null;
+    // for producers that can't park (asynchronous mode), run by the consumer when crossing the low watermark
+    private volatile Runnable mLowWatermarkListener = null;
+
+    /**
+     * @param capacity size of the ring in bytes
+     * @param frameSize bytes per PCM frame (channels * bytes per sample), reads are aligned on it
+     * @param lowWatermark fill level in bytes that wakes up the producer and restarts the consumer
+     * @param highWatermark fill level in bytes at which the producer stops
+     */
+    public PcmRingBuffer(int capacity, int frameSize, int lowWatermark, int highWatermark) {
+        if (frameSize <= 0 || capacity < frameSize) throw new IllegalArgumentException("bad ring buffer size " + capacity);
+        if (lowWatermark > highWatermark || highWatermark > capacity) throw new IllegalArgumentException("bad watermarks " + lowWatermark + "/" + highWatermark);
+        mBuffer = new byte[capacity - capacity % frameSize];
+        mFrameSize = frameSize;
+        // the capacity is rounded down to whole frames, a full ring must still be above the high watermark
+        mHighWatermark = Math.min(highWatermark, mBuffer.length);
+        mLowWatermark = Math.min(lowWatermark, mHighWatermark);
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Number of bytes written and not yet read, can be called from any thread
+     */
+    public int getFillLevel() {
+        // read position first so the result is never negative
+        long read = mReadPos.get();
+        return (int) (mWritePos.get() - read);
+    }
+
+    /**
+     * Producer side check, held back bytes count
+     */
+    public boolean isAboveHighWatermark() {
+        return getWrittenLevel() >= mHighWatermark;
+    }
+
+    public boolean isAboveLowWatermark() {
+        return getFillLevel() > mLowWatermark;
+    }
+
+    /**
+     * Set a callback run on the consumer thread each time reading drains the ring down to the low watermark,
+     * it must not block
+     * @param listener
+     */
+    public void setLowWatermarkListener(Runnable listener) {
+        mLowWatermarkListener = listener;
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // producer side
+
+    /**
+     * Copy as many bytes as fit from src's position to its limit, never blocks
+     * @param src
+     * @return number of bytes written, src position is advanced by the same amount
+     */
+    public int write(ByteBuffer src) {
+        long write = mPendingPos;
+        int free = mBuffer.length - (int) (write - mReadPos.get());
+        int len = Math.min(free, src.remaining());
+        if (len <= 0) return 0;
+
+        int offset = (int) (write % mBuffer.length);
+        int first = Math.min(len, mBuffer.length - offset);
+        src.get(mBuffer, offset, first);
+        if (first < len) src.get(mBuffer, 0, len - first);
+
+        mPendingPos = write + len;
+        publish();
+        return len;
+    }
+
+    /**
+     * Drop everything written so far, the consumer skips it on its next {@link #consumeFlush}.
+     * Data written after this call is kept.
+     */
+    public void flush() {
+        // held back bytes are dropped too
+        mPendingPos = mWritePos.get();
+        mFlushPos = mPendingPos;
+        mFlushCount++;
+        wakeUp(mWaitingConsumer);
+    }
+
+    /**
+     * Keep the last bytes written unreadable until {@link #dropHoldback}, or until more data is written
+     * @param frames at most half the low watermark, so the producer can always drain down to it
+     * @param frameSize bytes per frame of the data being written
+     * @return number of frames actually held back, less than asked if over half the low watermark
+     */
+    public int setHoldback(int frames, int frameSize) {
+        mHoldbackFrames = frames;
+        int held = Math.max(0, Math.min(frames, mLowWatermark / 2 / frameSize));
+        mHoldback = held * frameSize;
+        publish();
+        return held;
+    }
+
+    /**
+     * Discard the bytes currently held back, the next write continues from the readable data
+     */
+    public void dropHoldback() {
+        mPendingPos = mWritePos.get();
+        mHoldback = 0;
+        mHoldbackFrames = 0;
+    }
+
+    /**
+     * Insert a marker at the current write position. What is held back is not the end of the data
+     * anymore and becomes readable, call {@link #dropHoldback} first to drop it instead.
+     * @param marker
+     * @param frameSize bytes per frame of the data written after the marker, for the holdback
+     * @return false if too many markers are waiting for the consumer
+     */
+    public boolean addMarker(Object marker, int frameSize) {
+        int tail = mMarkerTail;
+        if (tail - mMarkerHead == MAX_MARKERS) return false;
+        if (mPendingPos > mWritePos.get()) mWritePos.lazySet(mPendingPos);
+        setHoldback(mHoldbackFrames, frameSize);
+        int i = tail % MAX_MARKERS;
+        mMarkerPos[i] = mPendingPos;
+        mMarkers[i] = marker;
+        // the volatile store publishes the slot
+        mMarkerTail = tail + 1;
+        // the consumer may be waiting for data that will now end at the marker
+        publish();
+        return true;
+    }
+
+    /**
+     * Mark that the producer will not write anymore, the consumer drains what is left
+     */
+    public void setEndOfStream() {
+        mEndOfStream = true;
+        wakeUp(mWaitingConsumer);
+    }
+
+    /**
+     * Park the producer until the consumer drained the ring down to the low watermark, or the timeout expires
+     * @param timeoutUs
+     */
+    public void awaitLowWatermark(long timeoutUs) {
+        if (getWrittenLevel() <= mLowWatermark) return;
+        mWaitingProducer = Thread.currentThread();
+        // check again, the consumer may have drained it before seeing us waiting
+        if (getWrittenLevel() > mLowWatermark) LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(timeoutUs));
+        mWaitingProducer = null;
+    }
+
+    /**
+     * Park the producer until at least size bytes are free, or the timeout expires
+     */
+    public void awaitSpace(int size, long timeoutUs) {
+        size = Math.min(size, mBuffer.length);
+        if (mBuffer.length - getWrittenLevel() >= size) return;
+        mWaitingProducer = Thread.currentThread();
+        if (mBuffer.length - getWrittenLevel() < size) LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(timeoutUs));
+        mWaitingProducer = null;
+    }
+
+    private int getWrittenLevel() {
+        return (int) (mPendingPos - mReadPos.get());
+    }
+
+    private void publish() {
+        long pos = mPendingPos - mHoldback;
+        if (pos > mWritePos.get()) {
+            mWritePos.lazySet(pos);
+            wakeUp(mWaitingConsumer);
+        } else if (mMarkerTail != mMarkerHead) {
+            wakeUp(mWaitingConsumer);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // consumer side
+
+    /**
+     * Change the frame size reads are aligned on, when the consumer reached a marker for a track
+     * with another format
+     */
+    public void setFrameSize(int frameSize) {
+        if (frameSize <= 0) throw new IllegalArgumentException("bad frame size " + frameSize);
+        mFrameSize = frameSize;
+    }
+
+    /**
+     * Take the next marker if the read position reached it
+     * @return the marker, or null
+     */
+    public Object pollMarker() {
+        int head = mMarkerHead;
+        if (head == mMarkerTail) return null;
+        int i = head % MAX_MARKERS;
+        if (mMarkerPos[i] > mReadPos.get()) return null;
+        Object marker = mMarkers[i];
+        mMarkers[i] = null;
+        mMarkerHead = head + 1;
+        return marker;
+    }
+
+    /**
+     * Read up to size bytes, rounded down to whole frames, never blocks
+     * @return number of bytes read
+     */
+    public int read(byte[] dst, int offset, int size) {
+        long read = mReadPos.get();
+        int available = (int) (mWritePos.get() - read);
+        int len = Math.min(available, size);
+        // don't read past the next marker
+        int head = mMarkerHead;
+        if (head != mMarkerTail) len = (int) Math.min(len, mMarkerPos[head % MAX_MARKERS] - read);
+        // nor past a flush not consumed yet: the write position may already include data written after it,
+        // which must not go out with the stale data the consumer is about to drop (checked after reading
+        // the write position, the flush count is updated before that data is published)
+        if (mFlushCount != mFlushSeen) len = (int) Math.min(len, mFlushPos - read);
+        len -= len % mFrameSize;
+        if (len <= 0) return 0;
+
+        int pos = (int) (read % mBuffer.length);
+        int first = Math.min(len, mBuffer.length - pos);
+        System.arraycopy(mBuffer, pos, dst, offset, first);
+        if (first < len) System.arraycopy(mBuffer, 0, dst, offset + first, len - first);
+
+        mReadPos.lazySet(read + len);
+        if (available - len <= mLowWatermark) {
+            wakeUp(mWaitingProducer);
+            Runnable listener = mLowWatermarkListener;
+            if (listener != null && available > mLowWatermark) listener.run();
+        }
+        return len;
+    }
+
+    /**
+     * Skip the data dropped by the producer's {@link #flush}, if any
+     * @return true if the producer flushed since the last call, so the consumer should flush its own output
+     */
+    public boolean consumeFlush() {
+        int count = mFlushCount;
+        if (count == mFlushSeen) return false;
+        mFlushSeen = count;
+        // the position is at least the one of that flush, maybe a later one, which is fine
+        long flushPos = mFlushPos;
+        if (flushPos > mReadPos.get()) mReadPos.lazySet(flushPos);
+        wakeUp(mWaitingProducer);
+        return true;
+    }
+
+    /**
+     * @return true if the producer flushed and the consumer didn't call {@link #consumeFlush} yet
+     */
+    public boolean isFlushPending() {
+        return mFlushCount != mFlushSeen;
+    }
+
+    /**
+     * @return true once the producer signaled end of stream and all data has been read
+     */
+    public boolean isDrained() {
+        return mEndOfStream && getFillLevel() < mFrameSize;
+    }
+
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /**
+     * Park the consumer until data above the low watermark is available (or end of stream), or the timeout expires
+     */
+    public void awaitData(long timeoutUs) {
+        if (isAboveLowWatermark() || mEndOfStream) return;
+        mWaitingConsumer = Thread.currentThread();
+        if (!isAboveLowWatermark() && !mEndOfStream) LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(timeoutUs));
+        mWaitingConsumer = null;
+    }
+
+    private static void wakeUp(Thread t) {
+        if (t != null) LockSupport.unpark(t);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.nijie.jmusicplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FIFO of codec output buffers that could not be handed to the sink yet.
+ *
+ * In asynchronous mode the codec thread never waits for the sink: an output buffer that does not
+ * fit in the PCM ring is kept here (not released to the codec) and copied later, when the
+ * render thread has freed some space. Holding output buffers is what throttles the codec.
+ *
+ * Only used from the codec thread, preallocated so queuing does not allocate.
+ */
+public class PendingOutputQueue {
+    private final int[] mIndices;
+    private final int[] mFlags;
+    private final ByteBuffer[] mBuffers;
+    private final Object[] mMarkers;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    public PendingOutputQueue(int capacity) {
+        mIndices = new int[capacity];
+        mFlags = new int[capacity];
+        mBuffers = new ByteBuffer[capacity];
+        mMarkers = new Object[capacity];
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @param index codec output buffer index
+     * @param buffer output buffer, its position and limit delimit the data still to be written
+     * @param flags buffer flags, as given by the codec
+     */
+    public void add(int index, ByteBuffer buffer, int flags) {
+        if (mCount == mIndices.length) throw new IllegalStateException("too many pending output buffers");
+        int tail = (mHead + mCount) % mIndices.length;
+        mIndices[tail] = index;
+        mBuffers[tail] = buffer;
+        mFlags[tail] = flags;
+        mCount++;
+    }
+
+    /**
+     * Queue a ring marker after the pending buffers, it has a negative index and no buffer
+     * @param marker
+     */
+    public void addMarker(Object marker) {
+        add(-1, null, 0);
+        mMarkers[(mHead + mCount - 1) % mIndices.length] = marker;
+    }
+
+    public Object peekMarker() {
+        return mMarkers[mHead];
+    }
+
+    public int peekIndex() {
+        return mIndices[mHead];
+    }
+
+    public ByteBuffer peekBuffer() {
+        return mBuffers[mHead];
+    }
+
+    public int peekFlags() {
+        return mFlags[mHead];
+    }
+
+    public void remove() {
+        mBuffers[mHead] = null;
+        mMarkers[mHead] = null;
+        mHead = (mHead + 1) % mIndices.length;
+        mCount--;
+    }
+
+    public void clear() {
+        while (mCount > 0) remove();
+        mHead = 0;
+    }
+}
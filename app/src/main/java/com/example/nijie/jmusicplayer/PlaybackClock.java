@@ -0,0 +1,157 @@
+package com.example.nijie.jmusicplayer;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+/**
+ * Audible playback position, derived from what the AudioTrack actually played.
+ *
+ * The render thread polls the track ({@link #update}) every now and then and stores an anchor
+ * (media time, monotonic time); readers interpolate from the anchor with the monotonic clock.
+ * The anchor is published with a sequence counter, so {@link #getPositionUs} never locks and can
+ * be called at display rate from any thread.
+ */
+public class PlaybackClock {
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    // render thread only
+    private int mSampleRate;
+    private long mBaseMediaUs = 0;
+    private long mFramesWritten = 0;
+    // track frame at which the current segment (media time base) starts, and the next one queued by gapless playback
+    private long mSegmentStartFrame = 0;
+    private long mNextBaseMediaUs = 0;
+    private long mNextSegmentStartFrame = -1;
+
+    // anchor, written by the render thread under the sequence counter
+    private volatile int mSeq = 0;
+    private volatile long mAnchorMediaUs = 0;
+    private volatile long mAnchorNanos = 0;
+    private volatile long mLimitMediaUs = 0;
+    private volatile boolean mRunning = false;
+    // time from a frame being written to it being played, from the last timestamp
+    private volatile long mOutputLatencyUs = 0;
+
+    public PlaybackClock(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Restart the clock at a media time, when the track starts or has been flushed
+     * (its playback head position goes back to 0)
+     * @param mediaUs media time of the next frame written
+     */
+    public void reset(long mediaUs) {
+        mBaseMediaUs = mediaUs;
+        mFramesWritten = 0;
+        mSegmentStartFrame = 0;
+        mNextSegmentStartFrame = -1;
+        publish(mediaUs, System.nanoTime(), mediaUs, false);
+    }
+
+    /**
+     * Restart the clock for a new track with a different sample rate
+     */
+    public void reset(long mediaUs, int sampleRate) {
+        mSampleRate = sampleRate;
+        reset(mediaUs);
+    }
+
+    /**
+     * The next frames written belong to another track (gapless playback): the clock switches to it
+     * once the track played everything written so far
+     * @param mediaUs media time of the next frame written
+     */
+    public void startSegment(long mediaUs) {
+        // a segment still pending was too short to ever be seen, skip it
+        if (mNextSegmentStartFrame >= 0) {
+            mBaseMediaUs = mNextBaseMediaUs;
+            mSegmentStartFrame = mNextSegmentStartFrame;
+        }
+        mNextBaseMediaUs = mediaUs;
+        mNextSegmentStartFrame = mFramesWritten;
+    }
+
+    /**
+     * @return media time right after the last frame written, render thread only
+     */
+    public long getWrittenPositionUs() {
+        if (mNextSegmentStartFrame >= 0) return mNextBaseMediaUs + framesToUs(mFramesWritten - mNextSegmentStartFrame);
+        return mBaseMediaUs + framesToUs(mFramesWritten - mSegmentStartFrame);
+    }
+
+    /**
+     * Account for frames handed to the track, the clock never runs past them (underruns)
+     */
+    public void onFramesWritten(int frames) {
+        mFramesWritten += frames;
+    }
+
+    /**
+     * Take a new anchor from the track, called by the render thread
+     * @param track
+     * @param running false when the track is paused, the clock stops at the anchor
+     */
+    public void update(AudioTrack track, boolean running) {
+        long frames, nanos;
+        if (track.getTimestamp(mTimestamp) && mTimestamp.nanoTime > 0) {
+            frames = mTimestamp.framePosition;
+            nanos = mTimestamp.nanoTime;
+            // what was written and not played yet at the timestamp, less the time since the timestamp
+            if (running) mOutputLatencyUs = framesToUs(mFramesWritten - frames) - (System.nanoTime() - nanos) / 1000;
+        } else {
+            // no timestamp yet (right after start), the head position is less precise but good enough
+            frames = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            nanos = System.nanoTime();
+        }
+        if (mNextSegmentStartFrame >= 0 && frames >= mNextSegmentStartFrame) {
+            mBaseMediaUs = mNextBaseMediaUs;
+            mSegmentStartFrame = mNextSegmentStartFrame;
+            mNextSegmentStartFrame = -1;
+        }
+        // don't run into the next segment before it is audible
+        long limitFrames = mNextSegmentStartFrame >= 0 ? mNextSegmentStartFrame : mFramesWritten;
+        publish(mBaseMediaUs + framesToUs(frames - mSegmentStartFrame), nanos,
+                mBaseMediaUs + framesToUs(limitFrames - mSegmentStartFrame), running);
+    }
+
+    /**
+     * @return measured output latency, from a frame written to the track to that frame being played, in us
+     */
+    public long getOutputLatencyUs() {
+        return mOutputLatencyUs;
+    }
+
+    /**
+     * @return the media time that is audible right now, in us
+     */
+    public long getPositionUs() {
+        long anchorUs, anchorNanos, limitUs;
+        boolean running;
+        int seq;
+        do {
+            seq = mSeq;
+            anchorUs = mAnchorMediaUs;
+            anchorNanos = mAnchorNanos;
+            limitUs = mLimitMediaUs;
+            running = mRunning;
+        } while ((seq & 1) != 0 || seq != mSeq);
+
+        if (!running) return anchorUs;
+        long positionUs = anchorUs + (System.nanoTime() - anchorNanos) / 1000;
+        return Math.min(positionUs, limitUs);
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000L / mSampleRate;
+    }
+
+    private void publish(long mediaUs, long nanos, long limitUs, boolean running) {
+        mSeq++;
+        mAnchorMediaUs = mediaUs;
+        mAnchorNanos = nanos;
+        mLimitMediaUs = limitUs;
+        mRunning = running;
+        mSeq++;
+    }
+}
@@ -9,4 +9,8 @@ public interface PlayerEvents {
     public void onPlayUpdate(int percent, long currentms, long totalms);
     public void onStop();
     public void onError();
+    /**
+     * Time to first audio of the playback that just started, once its first frame was heard
+     */
+    public void onStartupTrace(StartupTrace trace);
 }
@@ -0,0 +1,193 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the playback, cheap enough to be always on.
+ *
+ * Each counter and histogram is updated by one thread only (decode or codec thread, render thread),
+ * so updates are plain ordered stores, no locks and no compare and set loops. Any thread can take a
+ * {@link Snapshot} at any time without stopping playback, values in a snapshot may be a few updates
+ * apart from each other.
+ *
+ * Histograms have fixed buckets in us, from 50 us to 100 ms, the last bucket takes anything longer.
+ */
+public class PlayerMetrics {
+    // counters
+    public static final int BUFFERS_DECODED = 0;
+    public static final int BYTES_RENDERED = 1;
+    public static final int UNDERRUNS = 2;
+    public static final int FORMAT_CHANGES = 3;
+    public static final int SEEKS = 4;
+    public static final int COUNTER_COUNT = 5;
+
+    // histograms
+    // from an input buffer being queued to the output with the same timestamp
+    public static final int DECODE_TIME = 0;
+    // time blocked in AudioTrack.write
+    public static final int WRITE_TIME = 1;
+    // from a control command being sent to it being applied
+    public static final int COMMAND_LATENCY = 2;
+    public static final int HISTOGRAM_COUNT = 3;
+
+    private static final String[] COUNTER_NAMES = { "buffersDecoded", "bytesRendered", "underruns", "formatChanges", "seeks" };
+    private static final String[] HISTOGRAM_NAMES = { "decodeTime", "writeTime", "commandLatency" };
+
+    // upper bound of each bucket but the last one, in us
+    private static final long[] BUCKET_LIMITS_US = { 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000 };
+    public static final int BUCKET_COUNT = BUCKET_LIMITS_US.length + 1;
+
+    // queue times of the last input buffers by timestamp, to time their decoding, decode thread only
+    // (a power of 2)
+    private static final int INPUT_SLOTS = 16;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray mBuckets = new AtomicLongArray(HISTOGRAM_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mSumsUs = new AtomicLongArray(HISTOGRAM_COUNT);
+
+    private final long[] mInputPtsUs = new long[INPUT_SLOTS];
+    private final long[] mInputNanos = new long[INPUT_SLOTS];
+    private int mInputNext = 0;
+
+    /**
+     * @param counter
+     * @param n
+     */
+    public void add(int counter, long n) {
+        mCounters.lazySet(counter, mCounters.get(counter) + n);
+    }
+
+    public void increment(int counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @param histogram
+     * @param us
+     */
+    public void record(int histogram, long us) {
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_US.length && us > BUCKET_LIMITS_US[bucket]) bucket++;
+        int i = histogram * BUCKET_COUNT + bucket;
+        mBuckets.lazySet(i, mBuckets.get(i) + 1);
+        mSumsUs.lazySet(histogram, mSumsUs.get(histogram) + us);
+    }
+
+    /**
+     * An input buffer was queued to the decoder, decode thread only
+     * @param ptsUs its timestamp
+     */
+    public void onInputQueued(long ptsUs) {
+        int slot = mInputNext++ & (INPUT_SLOTS - 1);
+        mInputPtsUs[slot] = ptsUs;
+        mInputNanos[slot] = System.nanoTime();
+    }
+
+    /**
+     * The decoder returned a buffer of audio, decode thread only
+     * @param ptsUs its timestamp, the decode time is recorded if an input buffer had the same
+     */
+    public void onOutputDecoded(long ptsUs) {
+        increment(BUFFERS_DECODED);
+        for (int n = 1; n <= INPUT_SLOTS; n++) {
+            int slot = (mInputNext - n) & (INPUT_SLOTS - 1);
+            if (mInputNanos[slot] != 0 && mInputPtsUs[slot] == ptsUs) {
+                record(DECODE_TIME, (System.nanoTime() - mInputNanos[slot]) / 1000);
+                mInputNanos[slot] = 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget the input buffers in the decoder, after a flush, decode thread only
+     */
+    public void clearInputs() {
+        for (int i = 0; i < INPUT_SLOTS; i++) mInputNanos[i] = 0;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (int i = 0; i < COUNTER_COUNT; i++) s.counters[i] = mCounters.get(i);
+        for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+            for (int b = 0; b < BUCKET_COUNT; b++) s.buckets[h][b] = mBuckets.get(h * BUCKET_COUNT + b);
+            s.sumsUs[h] = mSumsUs.get(h);
+        }
+        return s;
+    }
+
+    /**
+     * Values of the counters and histograms at some point in time
+     */
+    public static class Snapshot {
+        final long[] counters = new long[COUNTER_COUNT];
+        final long[][] buckets = new long[HISTOGRAM_COUNT][BUCKET_COUNT];
+        final long[] sumsUs = new long[HISTOGRAM_COUNT];
+
+        public long getCounter(int counter) {
+            return counters[counter];
+        }
+
+        /**
+         * @return number of values recorded in a histogram
+         */
+        public long getCount(int histogram) {
+            long count = 0;
+            for (long n : buckets[histogram]) count += n;
+            return count;
+        }
+
+        /**
+         * @return number of values recorded in a bucket of a histogram
+         */
+        public long getBucketCount(int histogram, int bucket) {
+            return buckets[histogram][bucket];
+        }
+
+        /**
+         * @return upper bound of a bucket in us, Long.MAX_VALUE for the last one
+         */
+        public static long getBucketLimitUs(int bucket) {
+            return bucket < BUCKET_LIMITS_US.length ? BUCKET_LIMITS_US[bucket] : Long.MAX_VALUE;
+        }
+
+        public long getMeanUs(int histogram) {
+            long count = getCount(histogram);
+            return count == 0 ? 0 : sumsUs[histogram] / count;
+        }
+
+        /**
+         * @param histogram
+         * @param percentile 0 to 100
+         * @return upper bound of the bucket the percentile falls in, in us, 0 if the histogram is empty
+         */
+        public long getPercentileUs(int histogram, int percentile) {
+            long count = getCount(histogram);
+            if (count == 0) return 0;
+            long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                seen += buckets[histogram][b];
+                if (seen >= rank && seen > 0) return getBucketLimitUs(b);
+            }
+            return getBucketLimitUs(BUCKET_COUNT - 1);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < COUNTER_COUNT; i++) sb.append(COUNTER_NAMES[i]).append('=').append(counters[i]).append(' ');
+            for (int h = 0; h < HISTOGRAM_COUNT; h++) {
+                sb.append(HISTOGRAM_NAMES[h]).append("(n=").append(getCount(h))
+                        .append(" mean=").append(getMeanUs(h))
+                        .append("us p50").append(formatLimit(getPercentileUs(h, 50)))
+                        .append(" p99").append(formatLimit(getPercentileUs(h, 99))).append(") ");
+            }
+            return sb.toString().trim();
+        }
+
+        private static String formatLimit(long us) {
+            return us == Long.MAX_VALUE ? ">" + BUCKET_LIMITS_US[BUCKET_LIMITS_US.length - 1] + "us" : "<=" + us + "us";
+        }
+    }
+}
@@ -1,56 +1,178 @@
 package com.example.nijie.jmusicplayer;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Created by nijie on 9/1/15.
  */
 public class PlayerStates {
     /**
-     * Playing state which can either be stopped, playing, or reading the header before playing
+     * Playing state, changed only through the transitions allowed below, with compare and set:
+     *
+     * STOPPED/ERROR -> PREPARING -> BUFFERING <-> PLAYING, then STOPPED at the end.
+     * BUFFERING/PLAYING <-> PAUSED, BUFFERING/PLAYING -> SEEKING -> BUFFERING.
+     * Any state can go to STOPPED or ERROR.
      */
-    public static final int	READY_TO_PLAY = 2;
+    public static final int PREPARING = 1;
+    public static final int BUFFERING = 2;
     public static final int PLAYING = 3;
     public static final int STOPPED = 4;
-    public int playerState = STOPPED;
+    public static final int PAUSED = 5;
+    public static final int SEEKING = 6;
+    public static final int ERROR = 7;
+
+    // allowed transitions, ALLOWED[from] has bit "to" set
+    private static final int[] ALLOWED = new int[8];
+    static {
+        ALLOWED[STOPPED] = bits(PREPARING);
+        ALLOWED[ERROR] = bits(PREPARING, STOPPED);
+        ALLOWED[PREPARING] = bits(BUFFERING, STOPPED, ERROR);
+        ALLOWED[BUFFERING] = bits(PLAYING, PAUSED, SEEKING, STOPPED, ERROR);
+        ALLOWED[PLAYING] = bits(BUFFERING, PAUSED, SEEKING, STOPPED, ERROR);
+        ALLOWED[PAUSED] = bits(BUFFERING, PLAYING, STOPPED, ERROR);
+        ALLOWED[SEEKING] = bits(BUFFERING, STOPPED, ERROR);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(STOPPED);
+
+    // threads parked in awaitNotPaused, unparked when leaving PAUSED
+    // wait when paused without a timeout and all the waiter slots are taken
+    private static final long NO_SLOT_WAIT_US = 10000;
+    private final AtomicReferenceArray<Thread> mWaiters = new AtomicReferenceArray<Thread>(4);
+
+    private static int bits(int... states) {
+        int mask = 0;
+        for (int state : states) mask |= 1 << state;
+        return mask;
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        return from > 0 && from < ALLOWED.length && (ALLOWED[from] & (1 << to)) != 0;
+    }
 
     public int get() {
-        return playerState;
+        return mState.get();
     }
 
-    public void set(int state) {
-        playerState = state;
+    /**
+     * Atomically change the state if it is still the expected one and the transition is allowed
+     *
+     * @return <code>true</code> if the state changed, <code>false</code> otherwise
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to) || !mState.compareAndSet(from, to)) return false;
+        if (from == PAUSED || to == STOPPED || to == ERROR) wakeUpWaiters();
+        return true;
     }
 
+    /**
+     * Move to a state from whatever the current state is, as long as the transition is allowed
+     *
+     * @return <code>true</code> if the state changed, <code>false</code> otherwise
+     */
+    public boolean moveTo(int to) {
+        for (;;) {
+            int from = mState.get();
+            if (!isAllowed(from, to)) return false;
+            if (transition(from, to)) return true;
+        }
+    }
 
     /**
-     * Checks whether the player is ready to play, this is the state used also for Pause (phase 2)
+     * Start a new playback, only from STOPPED or ERROR, so two playbacks can't be started concurrently
      *
-     * @return <code>true</code> if ready, <code>false</code> otherwise
+     * @return <code>true</code> if the caller should prepare the playback
      */
-    public synchronized boolean isReadyToPlay() {
-        return playerState == PlayerStates.READY_TO_PLAY;
+    public boolean startPreparing() {
+        return transition(STOPPED, PREPARING) || transition(ERROR, PREPARING);
     }
 
+    /**
+     * Pause, from BUFFERING or PLAYING
+     *
+     * @return <code>true</code> if paused
+     */
+    public boolean pause() {
+        for (;;) {
+            int from = mState.get();
+            if (from != BUFFERING && from != PLAYING) return false;
+            if (transition(from, PAUSED)) return true;
+        }
+    }
 
     /**
-     * Checks whether the player is currently playing (phase 3)
+     * Resume after a pause, the renderer moves on to PLAYING once it has data
      *
-     * @return <code>true</code> if playing, <code>false</code> otherwise
+     * @return <code>true</code> if resumed
      */
-    public synchronized boolean isPlaying() {
-        return playerState == PlayerStates.PLAYING;
+    public boolean resume() {
+        return transition(PAUSED, BUFFERING);
     }
 
+    /**
+     * Park the calling thread while paused, until resumed or stopped, or until unparked
+     */
+    public void awaitNotPaused() {
+        awaitNotPaused(0);
+    }
 
     /**
-     * Checks whether the player is currently stopped (not playing)
+     * Park the calling thread while paused, until resumed or stopped or the timeout expires
+     * @param timeoutUs 0 for no timeout
+     */
+    public void awaitNotPaused(long timeoutUs) {
+        if (mState.get() != PAUSED) return;
+        Thread current = Thread.currentThread();
+        int slot = -1;
+        for (int i = 0; i < mWaiters.length() && slot < 0; i++) {
+            if (mWaiters.compareAndSet(i, null, current)) slot = i;
+        }
+        // check again, we may have been resumed before registering; without a slot, nothing unparks
+        // us, so wait for the timeout, a short one if there is none
+        if (mState.get() == PAUSED) {
+            if (slot >= 0 && timeoutUs <= 0) LockSupport.park(this);
+            else LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(timeoutUs > 0 ? timeoutUs : NO_SLOT_WAIT_US));
+        }
+        if (slot >= 0) mWaiters.set(slot, null);
+    }
+
+    private void wakeUpWaiters() {
+        for (int i = 0; i < mWaiters.length(); i++) {
+            Thread t = mWaiters.get(i);
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
+
+    /**
+     * Checks whether the player is paused
      *
-     * @return <code>true</code> if playing, <code>false</code> otherwise
+     * @return <code>true</code> if paused, <code>false</code> otherwise
      */
-    public synchronized boolean isStopped() {
-        return playerState == PlayerStates.STOPPED;
+    public boolean isPaused() {
+        return mState.get() == PAUSED;
     }
 
 
+    /**
+     * Checks whether the player is currently playing (phase 3)
+     *
+     * @return <code>true</code> if playing, <code>false</code> otherwise
+     */
+    public boolean isPlaying() {
+        return mState.get() == PLAYING;
+    }
 
 
+    /**
+     * Checks whether the player is currently stopped (not playing)
+     *
+     * @return <code>true</code> if stopped, <code>false</code> otherwise
+     */
+    public boolean isStopped() {
+        return mState.get() == STOPPED;
+    }
 }
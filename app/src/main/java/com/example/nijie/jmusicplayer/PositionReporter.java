@@ -0,0 +1,124 @@
+package com.example.nijie.jmusicplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Delivers playback position updates to the UI at a fixed rate.
+ *
+ * The position is read lock-free from the {@link PlaybackClock} of the playback, so producing
+ * positions never wakes up the main thread.
+ * The main thread picks it up from a display frame callback every update interval, and calls
+ * {@link PlayerEvents#onPlayUpdate} only if the position moved.
+ */
+public class PositionReporter implements Choreographer.FrameCallback {
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private PlayerEvents mEvents;
+
+    // set by the decode side, read on the main thread
+    private volatile PlaybackClock mClock = null;
+    private volatile long mDurationUs = 0;
+    private volatile int mIntervalMs = 100;
+
+    // main thread only
+    private Choreographer mChoreographer = null;
+    private boolean mRunning = false;
+    private long mDeliveredUs = -1;
+
+    // metrics, updated on the main thread
+    private volatile long mPostCount = 0;
+    private volatile int mPostsPerSecond = 0;
+    private long mWindowStartMs = 0;
+    private long mWindowPostCount = 0;
+
+    public PositionReporter(PlayerEvents events) {
+        mEvents = events;
+    }
+
+    public void setEventsListener(PlayerEvents events) {
+        mEvents = events;
+    }
+
+    /**
+     * How often the UI gets updates, updates are aligned to display frames
+     * @param intervalMs 0 for every frame
+     */
+    public void setUpdateInterval(int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    /**
+     * Start delivering updates, can be called from any thread
+     * @param durationUs stream duration, used for the percentage, 0 for live streams
+     * @param clock where to read the position from
+     */
+    public void start(long durationUs, PlaybackClock clock) {
+        mDurationUs = durationUs;
+        mClock = clock;
+        mMainHandler.post(new Runnable() { @Override public void run() {
+            if (mChoreographer == null) mChoreographer = Choreographer.getInstance();
+            mDeliveredUs = -1;
+            if (!mRunning) {
+                mRunning = true;
+                mChoreographer.postFrameCallback(PositionReporter.this);
+            }
+        } });
+    }
+
+    /**
+     * Stop delivering updates, can be called from any thread
+     */
+    public void stop() {
+        mMainHandler.post(new Runnable() { @Override public void run() {
+            if (mRunning) mChoreographer.removeFrameCallback(PositionReporter.this);
+            mRunning = false;
+        } });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+
+        PlaybackClock clock = mClock;
+        long positionUs = (clock != null) ? clock.getPositionUs() : -1;
+        if (positionUs >= 0 && positionUs != mDeliveredUs && mEvents != null) {
+            mDeliveredUs = positionUs;
+            long durationUs = mDurationUs;
+            int percent = (durationUs == 0) ? 0 : (int) (100 * positionUs / durationUs);
+            mEvents.onPlayUpdate(percent, positionUs / 1000, durationUs / 1000);
+        }
+        countPost();
+
+        int intervalMs = mIntervalMs;
+        if (intervalMs > 0) mChoreographer.postFrameCallbackDelayed(this, intervalMs);
+        else mChoreographer.postFrameCallback(this);
+    }
+
+    private void countPost() {
+        mPostCount++;
+        mWindowPostCount++;
+        long now = SystemClock.uptimeMillis();
+        if (mWindowStartMs == 0) mWindowStartMs = now;
+        if (now - mWindowStartMs >= 1000) {
+            mPostsPerSecond = (int) (mWindowPostCount * 1000 / (now - mWindowStartMs));
+            mWindowPostCount = 0;
+            mWindowStartMs = now;
+        }
+    }
+
+    /**
+     * @return total number of times the main thread was woken up for position updates
+     */
+    public long getMainThreadPostCount() {
+        return mPostCount;
+    }
+
+    /**
+     * @return main thread wake ups per second for position updates, measured over the last second
+     */
+    public int getMainThreadPostsPerSecond() {
+        return mPostsPerSecond;
+    }
+}
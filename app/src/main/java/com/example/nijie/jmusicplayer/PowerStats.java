@@ -0,0 +1,72 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * Power cost of a playback, to compare the output modes: wakeups of the decode and render threads
+ * (each pass through their loops follows a wait, in the codec, the ring, the AudioTrack or a sleep)
+ * and the CPU time they use per second of audio played.
+ *
+ * Updated by the playback threads, read from any thread.
+ */
+public class PowerStats {
+    private final AtomicLong mWakeups = new AtomicLong(0);
+    private final AtomicLong mCpuNanos = new AtomicLong(0);
+    private final AtomicLong mAudioUs = new AtomicLong(0);
+    private volatile long mStartMs = 0;
+
+    /**
+     * Start counting for a new playback
+     */
+    public void start() {
+        mWakeups.set(0);
+        mCpuNanos.set(0);
+        mAudioUs.set(0);
+        mStartMs = SystemClock.elapsedRealtime();
+    }
+
+    public void onWakeup() {
+        mWakeups.incrementAndGet();
+    }
+
+    /**
+     * Account for the CPU time used by the calling thread since its previous call
+     * @param last what the previous call returned, 0 for the first one
+     * @return the value to give to the next call
+     */
+    public long addThreadCpuTime(long last) {
+        long now = Debug.threadCpuTimeNanos();
+        if (now <= 0) return last;
+        if (last > 0) mCpuNanos.addAndGet(now - last);
+        return now;
+    }
+
+    /**
+     * Account for audio written to the AudioTrack
+     * @param us
+     */
+    public void addAudio(long us) {
+        mAudioUs.addAndGet(us);
+    }
+
+    /**
+     * @return wakeups per minute since the playback started
+     */
+    public int getWakeupsPerMinute() {
+        long elapsedMs = SystemClock.elapsedRealtime() - mStartMs;
+        if (mStartMs == 0 || elapsedMs <= 0) return 0;
+        return (int) (mWakeups.get() * 60000L / elapsedMs);
+    }
+
+    /**
+     * @return CPU time used by the decode and render threads per second of audio, in us
+     */
+    public long getCpuUsPerAudioSecond() {
+        long audioUs = mAudioUs.get();
+        if (audioUs <= 0) return 0;
+        return mCpuNanos.get() * 1000L / audioUs;
+    }
+}
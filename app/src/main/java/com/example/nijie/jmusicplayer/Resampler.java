@@ -0,0 +1,215 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.Arrays;
+
+/**
+ * Polyphase sample rate converter, so a track can be played at the device native output rate
+ * (44.1 kHz content on a 48 kHz device) instead of being resampled by the platform mixer.
+ *
+ * The conversion ratio is reduced to L/M, and the low pass filter of the interpolation by L is a Kaiser
+ * windowed sinc split into its L phases, each output frame is one phase applied to the last input
+ * frames. The filter length and stopband depend on the quality level. Tables and buffers are
+ * allocated by {@link #configure} only, processing allocates nothing.
+ *
+ * Interleaved float samples, any channel count. Used by the render thread only.
+ */
+public class Resampler {
+    public static final int QUALITY_NONE = 0;
+    public static final int QUALITY_LOW = 1;
+    public static final int QUALITY_MEDIUM = 2;
+    public static final int QUALITY_HIGH = 3;
+
+    // filter length in input frames, Kaiser beta (about 50, 70 and 90 dB of stopband attenuation)
+    // and cutoff as a fraction of the lower of the two Nyquist frequencies, per quality level
+    private static final int[] TAPS = { 0, 16, 32, 64 };
+    private static final double[] BETA = { 0, 5, 7, 9 };
+    private static final double[] CUTOFF = { 0, 0.90, 0.92, 0.95 };
+
+    // phase table size limit, all the usual rates between 8 and 192 kHz need far less
+    private static final int MAX_PHASES = 1024;
+    // downsampling limit, the filter would advance past its own length for every output frame
+    private static final int MAX_DECIMATION = 4;
+
+    private int mInRate = 0;
+    private int mOutRate = 0;
+    private int mChannels = 0;
+    private int mQuality = QUALITY_NONE;
+    private int mL = 1;
+    private int mM = 1;
+    private int mTaps = 0;
+    // phase major, mTaps coefficients per phase
+    private float[] mFilter = null;
+
+    // input frames still needed by the filter, followed by the new ones
+    private float[] mBuffer = null;
+    private int mBufferFrames = 0;
+    // filter phase of the next output frame
+    private int mPhase = 0;
+
+    /**
+     * @return true if the conversion can be done
+     */
+    public static boolean isSupported(int inRate, int outRate) {
+        if (inRate <= 0 || outRate <= 0) return false;
+        int gcd = gcd(inRate, outRate);
+        return outRate / gcd <= MAX_PHASES && inRate <= MAX_DECIMATION * outRate;
+    }
+
+    /**
+     * Set the conversion up, the filter history is dropped if it changes
+     * @param inRate
+     * @param outRate
+     * @param channels
+     * @param quality one of the QUALITY_LOW, QUALITY_MEDIUM or QUALITY_HIGH levels
+     * @param maxInFrames largest number of frames given to process at once
+     */
+    public void configure(int inRate, int outRate, int channels, int quality, int maxInFrames) {
+        if (!isSupported(inRate, outRate)) throw new IllegalArgumentException("can't resample " + inRate + "Hz to " + outRate + "Hz");
+        if (quality < QUALITY_LOW || quality > QUALITY_HIGH) throw new IllegalArgumentException("bad quality " + quality);
+
+        boolean changed = inRate != mInRate || outRate != mOutRate || quality != mQuality || channels != mChannels;
+        if (inRate != mInRate || outRate != mOutRate || quality != mQuality) {
+            int gcd = gcd(inRate, outRate);
+            mL = outRate / gcd;
+            mM = inRate / gcd;
+            mTaps = TAPS[quality];
+            mFilter = design(mL, mTaps, Math.min(1.0, (double) mL / mM) * CUTOFF[quality], BETA[quality]);
+            mInRate = inRate;
+            mOutRate = outRate;
+            mQuality = quality;
+        }
+        int size = (mTaps + maxInFrames) * channels;
+        if (mBuffer == null || mBuffer.length < size) {
+            mBuffer = new float[size];
+            changed = true;
+        }
+        mChannels = channels;
+        if (changed) reset();
+    }
+
+    /**
+     * Drop the filter history, on a discontinuity
+     */
+    public void reset() {
+        if (mBuffer == null) return;
+        // half a filter of silence, so the first output frame is centered on the first input frame
+        mBufferFrames = mTaps / 2 - 1;
+        Arrays.fill(mBuffer, 0, mBufferFrames * mChannels, 0f);
+        mPhase = 0;
+    }
+
+    /**
+     * @return size in frames of the output buffer needed to process inFrames at once
+     */
+    public int getMaxOutputFrames(int inFrames) {
+        return (int) (((long) (inFrames + mTaps) * mL + mM - 1) / mM) + 1;
+    }
+
+    /**
+     * Convert a block of frames. The output lags half a filter behind, the frames it still needs are
+     * kept for the next block.
+     * @param in interleaved samples
+     * @param inFrames at most the maxInFrames given to configure
+     * @param out room for {@link #getMaxOutputFrames} frames
+     * @return number of output frames
+     */
+    public int process(float[] in, int inFrames, float[] out) {
+        final int channels = mChannels;
+        final int taps = mTaps;
+        final int l = mL;
+        final int m = mM;
+        final float[] h = mFilter;
+        final float[] x = mBuffer;
+
+        System.arraycopy(in, 0, x, mBufferFrames * channels, inFrames * channels);
+        int frames = mBufferFrames + inFrames;
+
+        int base = 0;
+        int phase = mPhase;
+        int o = 0;
+        while (base + taps <= frames) {
+            int hi = phase * taps;
+            if (channels == 2) {
+                float left = 0, right = 0;
+                for (int k = 0, xi = 2 * base; k < taps; k++, xi += 2) {
+                    float c = h[hi + k];
+                    left += x[xi] * c;
+                    right += x[xi + 1] * c;
+                }
+                out[o++] = left;
+                out[o++] = right;
+            } else {
+                for (int ch = 0; ch < channels; ch++) {
+                    float acc = 0;
+                    for (int k = 0, xi = base * channels + ch; k < taps; k++, xi += channels) {
+                        acc += x[xi] * h[hi + k];
+                    }
+                    out[o++] = acc;
+                }
+            }
+            phase += m;
+            if (phase >= l) {
+                base += phase / l;
+                phase %= l;
+            }
+        }
+
+        // keep what the next output frames still need
+        int keep = frames - base;
+        System.arraycopy(x, base * channels, x, 0, keep * channels);
+        mBufferFrames = keep;
+        mPhase = phase;
+        return o / channels;
+    }
+
+    /**
+     * Kaiser windowed sinc, split in phases, each phase normalized to unity gain at DC
+     * @param phases
+     * @param taps
+     * @param cutoff in cycles per input sample times 2 (1 is the input Nyquist frequency)
+     * @param beta
+     */
+    private static float[] design(int phases, int taps, double cutoff, double beta) {
+        float[] h = new float[phases * taps];
+        int half = taps / 2;
+        double i0Beta = besselI0(beta);
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                // distance in input frames from the tap to the output position
+                double d = (half - 1 - k) + (double) p / phases;
+                double t = d / half;
+                double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - t * t))) / i0Beta;
+                double x = Math.PI * cutoff * d;
+                double sinc = x == 0 ? 1 : Math.sin(x) / x;
+                double c = cutoff * sinc * window;
+                h[p * taps + k] = (float) c;
+                sum += c;
+            }
+            for (int k = 0; k < taps; k++) h[p * taps + k] /= sum;
+        }
+        return h;
+    }
+
+    /**
+     * Modified Bessel function of the first kind, order 0
+     */
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time to first audio of a playback, stage by stage: when each startup step completed, on the
+ * System.nanoTime clock, from the play request to the first frame being audible.
+ *
+ * Stages are marked by the decode (or codec) thread and the render thread, each one once, the first
+ * time it is reached. The trace is delivered to {@link PlayerEvents#onStartupTrace} once complete.
+ */
+public class StartupTrace {
+    public static final int PLAY = 0;
+    public static final int SET_DATA_SOURCE = 1;
+    public static final int GET_TRACK_FORMAT = 2;
+    public static final int CREATE_DECODER = 3;
+    public static final int CONFIGURE = 4;
+    public static final int START = 5;
+    public static final int FIRST_INPUT = 6;
+    public static final int FIRST_OUTPUT = 7;
+    public static final int FIRST_WRITE = 8;
+    public static final int FIRST_AUDIBLE = 9;
+    public static final int STAGE_COUNT = 10;
+
+    private static final String[] NAMES = {
+            "play", "setDataSource", "getTrackFormat", "createDecoder", "configure", "start",
+            "firstInput", "firstOutput", "firstWrite", "firstAudible",
+    };
+
+    private final AtomicLongArray mNanos = new AtomicLongArray(STAGE_COUNT);
+    private volatile boolean mDecoderReused = false;
+
+    /**
+     * Start a trace, at the play request
+     */
+    public StartupTrace() {
+        mNanos.set(PLAY, System.nanoTime());
+    }
+
+    /**
+     * Mark a stage as completed now, unless it already was
+     * @param stage
+     */
+    public void mark(int stage) {
+        markAt(stage, System.nanoTime());
+    }
+
+    /**
+     * Mark a stage as completed at a given time, unless it already was
+     * @param stage
+     * @param nanos on the System.nanoTime clock
+     */
+    public void markAt(int stage, long nanos) {
+        if (mNanos.get(stage) == 0) mNanos.compareAndSet(stage, 0, nanos);
+    }
+
+    public boolean isMarked(int stage) {
+        return mNanos.get(stage) != 0;
+    }
+
+    /**
+     * @param reused true if the decoder was taken from the pool, createDecoder then didn't create one
+     */
+    public void setDecoderReused(boolean reused) {
+        mDecoderReused = reused;
+    }
+
+    public boolean isDecoderReused() {
+        return mDecoderReused;
+    }
+
+    /**
+     * @return when the stage completed, on the System.nanoTime clock, 0 if it wasn't reached
+     */
+    public long getNanos(int stage) {
+        return mNanos.get(stage);
+    }
+
+    /**
+     * @return time from the play request to the stage, in us, -1 if it wasn't reached
+     */
+    public long getElapsedUs(int stage) {
+        long nanos = mNanos.get(stage);
+        return nanos == 0 ? -1 : (nanos - mNanos.get(PLAY)) / 1000;
+    }
+
+    /**
+     * @return time from the previous stage reached to this one, in us, -1 if it wasn't reached
+     */
+    public long getStageUs(int stage) {
+        long nanos = mNanos.get(stage);
+        if (nanos == 0) return -1;
+        for (int i = stage - 1; i >= 0; i--) {
+            long previous = mNanos.get(i);
+            if (previous != 0) return (nanos - previous) / 1000;
+        }
+        return 0;
+    }
+
+    public static String getName(int stage) {
+        return NAMES[stage];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("startup");
+        for (int i = 1; i < STAGE_COUNT; i++) {
+            sb.append(' ').append(NAMES[i]).append('=');
+            long us = getElapsedUs(i);
+            if (us < 0) sb.append('-');
+            else sb.append(String.format(Locale.US, "%.1fms", us / 1000.0));
+        }
+        if (mDecoderReused) sb.append(" (decoder reused)");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.nijie.jmusicplayer;
+
+import java.lang.reflect.Method;
+
+import android.os.Trace;
+
+/**
+ * Sections and counter tracks of the playback threads in systrace / Perfetto captures.
+ *
+ * Counters and the enabled check aren't public API before Android Q: they are looked up once by
+ * reflection (Trace.isEnabled / setCounter, or the hidden isTagEnabled / traceCounter of older
+ * releases), and everything is a no op when they can't be found. The hot loops check
+ * {@link #isEnabled} once per pass and skip all tracing when it returns false, section names are
+ * constants, so nothing is allocated when tracing is off. The enabled state is cached and only
+ * asked again every {@link #ENABLED_CHECK_INTERVAL_MS}, the reflective call isn't made on every pass.
+ */
+public final class SysTrace {
+    // Trace.TRACE_TAG_APP, the tag of app sections
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private static final Object[] APP_TAG = { Long.valueOf(TRACE_TAG_APP) };
+
+    // how long the enabled state is trusted, a capture started meanwhile misses at most that much
+    public static final long ENABLED_CHECK_INTERVAL_MS = 100;
+
+    private static Method sIsEnabled;
+    private static Method sSetCounter;
+    // true for the hidden methods, taking the tag as first argument
+    private static boolean sTagged;
+
+    private static volatile boolean sEnabled;
+    // when the enabled state is to be asked again
+    private static volatile long sNextCheckNanos;
+
+    static {
+        try {
+            sIsEnabled = Trace.class.getMethod("isEnabled");
+            sSetCounter = Trace.class.getMethod("setCounter", String.class, long.class);
+        } catch (Exception e) {
+            try {
+                sIsEnabled = Trace.class.getMethod("isTagEnabled", long.class);
+                sSetCounter = Trace.class.getMethod("traceCounter", long.class, String.class, int.class);
+                sTagged = true;
+            } catch (Exception e2) {
+                sIsEnabled = null;
+                sSetCounter = null;
+            }
+        }
+        sEnabled = queryEnabled();
+        sNextCheckNanos = System.nanoTime() + ENABLED_CHECK_INTERVAL_MS * 1000000;
+    }
+
+    private SysTrace() {
+    }
+
+    /**
+     * @return true if app tracing is on, false as well if it can't be told
+     */
+    public static boolean isEnabled() {
+        long now = System.nanoTime();
+        if (now - sNextCheckNanos < 0) return sEnabled;
+        // threads racing here both ask, and store the same answer
+        sEnabled = queryEnabled();
+        sNextCheckNanos = now + ENABLED_CHECK_INTERVAL_MS * 1000000;
+        return sEnabled;
+    }
+
+    private static boolean queryEnabled() {
+        if (sIsEnabled == null) return false;
+        try {
+            return (Boolean) sIsEnabled.invoke(null, sTagged ? APP_TAG : null);
+        } catch (Exception e) {
+            sIsEnabled = null;
+            return false;
+        }
+    }
+
+    /**
+     * @param name a constant, to not allocate
+     */
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Set a counter track, only call when {@link #isEnabled} returned true
+     * @param name a constant
+     * @param value
+     */
+    public static void setCounter(String name, long value) {
+        if (sSetCounter == null) return;
+        try {
+            if (sTagged) sSetCounter.invoke(null, TRACE_TAG_APP, name, (int) value);
+            else sSetCounter.invoke(null, name, value);
+        } catch (Exception e) {
+            sSetCounter = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.nijie.jmusicplayer;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * One source being decoded: its extractor, its codec and what was read from its header.
+ *
+ * Opening a source (extractor, track format, codec creation) is slow, so for gapless playback
+ * the next source is opened and started on a background thread while the current one plays.
+ * Decoders come from and go back to a {@link DecoderPool}.
+ */
+public class TrackDecoder {
+    public final String LOG_TAG = "TrackDecoder";
+
+    // keys set by the extractors for MP3 (LAME header) and AAC (iTunSMPB), in frames
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+    final Context context;
+    final String sourcePath;
+    final int sourceRawResId;
+    private final DecoderPool mPool;
+
+    MediaExtractor extractor = null;
+    MediaCodec codec = null;
+    // looper of the thread the codec was created on, and whether callbacks were set on it
+    private Looper mCodecLooper = null;
+    private boolean mCallbacks = false;
+    // startup stages are marked in it, for the first source of a playback
+    private StartupTrace mTrace = null;
+    MediaFormat format = null;
+    TrackInfo info = null;
+
+    String mime = null;
+    int sampleRate = 0, channels = 0, bitrate = 0;
+    long duration = 0;
+    int encoderDelay = 0, encoderPadding = 0;
+
+    public TrackDecoder(String path, DecoderPool pool) {
+        context = null;
+        sourcePath = path;
+        sourceRawResId = -1;
+        mPool = pool;
+    }
+
+    public TrackDecoder(Context context, int resid, DecoderPool pool) {
+        this.context = context;
+        sourcePath = null;
+        sourceRawResId = resid;
+        mPool = pool;
+    }
+
+    /**
+     * Open the source, read the track header and get a decoder, without configuring it
+     * @param callbacks true if the decoder will be used in asynchronous mode, from the calling thread's looper
+     * @return false if the source can't be played
+     */
+    public boolean open(boolean callbacks) {
+        StartupTrace trace = mTrace;
+        // extractor gets information about the stream
+        extractor = new MediaExtractor();
+        // try to set the source, this might fail
+        try {
+            if (sourcePath != null) extractor.setDataSource(sourcePath);
+            if (sourceRawResId != -1) {
+                AssetFileDescriptor fd = context.getResources().openRawResourceFd(sourceRawResId);
+                extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getDeclaredLength());
+                fd.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "exception:" + e.getMessage());
+            return false;
+        }
+        if (trace != null) trace.mark(StartupTrace.SET_DATA_SOURCE);
+
+        // Read track header
+        try {
+            format = extractor.getTrackFormat(0);
+            if (trace != null) trace.mark(StartupTrace.GET_TRACK_FORMAT);
+            mime = format.getString(MediaFormat.KEY_MIME);
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            // if duration is 0, we are probably playing a live stream
+            duration = format.getLong(MediaFormat.KEY_DURATION);
+            if (format.containsKey(KEY_ENCODER_DELAY)) encoderDelay = format.getInteger(KEY_ENCODER_DELAY);
+            if (format.containsKey(KEY_ENCODER_PADDING)) encoderPadding = format.getInteger(KEY_ENCODER_PADDING);
+            bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Reading format parameters exception:"+e.getMessage());
+            // don't exit, tolerate this error, we'll fail later if this is critical
+        }
+        Log.d(LOG_TAG, "Track info: mime:" + mime + " sampleRate:" + sampleRate + " channels:" + channels + " bitrate:" + bitrate + " duration:" + duration
+                + " delay:" + encoderDelay + " padding:" + encoderPadding);
+
+        // check we have audio content we know
+        if (format == null || mime == null || !mime.startsWith("audio/")) return false;
+        if (channels < 1 || channels > ChannelMixer.MAX_CHANNELS) {
+            Log.e(LOG_TAG, "unsupported channel count " + channels);
+            return false;
+        }
+        info = new TrackInfo(mime, sampleRate, channels, duration);
+
+        // get the actual decoder, using the mime to select, reused if one is idle
+        try {
+            int misses = mPool.getMisses();
+            codec = mPool.acquire(mime, sampleRate, channels, callbacks);
+            if (trace != null) {
+                trace.mark(StartupTrace.CREATE_DECODER);
+                trace.setDecoderReused(mPool.getMisses() == misses);
+            }
+        } catch (Exception error) {
+            Log.e(LOG_TAG, "Create decoder error: " + error);
+            return false;
+        }
+        mCodecLooper = Looper.myLooper();
+        return codec != null;
+    }
+
+    /**
+     * Mark the startup stages of opening and starting the decoder, to be set before open
+     */
+    public void setStartupTrace(StartupTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Switch the decoder to asynchronous mode, before configuring it
+     */
+    public void setCallback(MediaCodec.Callback callback) {
+        codec.setCallback(callback);
+        mCallbacks = true;
+    }
+
+    /**
+     * Configure and start the decoder for synchronous use. The encoder delay and padding are trimmed by
+     * the decode loop then (so the padding can be held back across gapless tracks), the decoder must
+     * not trim them too: the keys are zeroed (removeKey isn't available at this SDK level).
+     */
+    public void start() {
+        if (format.containsKey(KEY_ENCODER_DELAY)) format.setInteger(KEY_ENCODER_DELAY, 0);
+        if (format.containsKey(KEY_ENCODER_PADDING)) format.setInteger(KEY_ENCODER_PADDING, 0);
+        codec.configure(format, null, null, 0);
+        if (mTrace != null) mTrace.mark(StartupTrace.CONFIGURE);
+        codec.start();
+        if (mTrace != null) mTrace.mark(StartupTrace.START);
+        extractor.selectTrack(0);
+    }
+
+    public void release() {
+        if (codec != null) {
+            mPool.recycle(codec, mime, sampleRate, channels, mCodecLooper, mCallbacks);
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+    }
+}
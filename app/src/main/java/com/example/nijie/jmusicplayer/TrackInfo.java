@@ -0,0 +1,40 @@
+package com.example.nijie.jmusicplayer;
+
+
+/**
+ * Description of a decoded track, as needed by the render side
+ */
+public class TrackInfo {
+    public final String mime;
+    public final int sampleRate;
+    public final int channels;
+    public final long durationUs;
+
+    public TrackInfo(String mime, int sampleRate, int channels, long durationUs) {
+        this.mime = mime;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.durationUs = durationUs;
+    }
+
+    /**
+     * @return bytes per 16 bit PCM frame of decoder output
+     */
+    public int getFrameSize() {
+        return 2 * channels;
+    }
+
+    /**
+     * @return channel mask of the AudioTrack playing this track, see {@link ChannelMixer}
+     */
+    public int getChannelConfiguration() {
+        return ChannelMixer.getOutputChannelMask(channels, sampleRate);
+    }
+
+    /**
+     * @return true if PCM of both tracks can be written to the same AudioTrack
+     */
+    public boolean hasSameOutputFormat(TrackInfo other) {
+        return other != null && sampleRate == other.sampleRate && getChannelConfiguration() == other.getChannelConfiguration();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.nijie.jmusicplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downmix coefficients, and a micro-benchmark of the downmix throughput.
+ */
+public class ChannelMixerTest {
+
+    private static void put(byte[] pcm, int sample, int i) {
+        pcm[2 * i] = (byte) sample;
+        pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+
+    private static int get(byte[] pcm, int i) {
+        return (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+    }
+
+    @Test
+    public void downmixes51WithItuCoefficients() {
+        ChannelMixer mixer = new ChannelMixer();
+        mixer.configure(6, 2);
+        // FL FR FC LFE BL BR
+        byte[] pcm = new byte[12];
+        put(pcm, 1000, 0);
+        put(pcm, -1000, 1);
+        put(pcm, 2000, 2);
+        put(pcm, 30000, 3);
+        put(pcm, 400, 4);
+        put(pcm, -400, 5);
+
+        assertEquals(4, mixer.process(pcm, 12));
+        // (1000 + 0.707 * 2000 + 0.707 * 400) / 2.414, LFE dropped
+        assertEquals(1117, get(pcm, 0), 1);
+        assertEquals(54, get(pcm, 1), 1);
+    }
+
+    @Test
+    public void fullScaleSurroundDoesNotClip() {
+        ChannelMixer mixer = new ChannelMixer();
+        mixer.configure(8, 2);
+        byte[] pcm = new byte[16];
+        for (int i = 0; i < 8; i++) put(pcm, 32767, i);
+        mixer.process(pcm, 16);
+        // all gains add up to just under 1, the sum of the left channels is barely scaled down
+        assertTrue(get(pcm, 0) < 32767);
+        assertTrue(get(pcm, 0) > 32700);
+    }
+
+    @Test
+    public void unrolledAndGenericKernelsAgree() {
+        int frames = 1000;
+        byte[] a = new byte[frames * 12];
+        for (int i = 0; i < frames * 6; i++) put(a, (i * 7919) % 65536 - 32768, i);
+        byte[] b = a.clone();
+
+        ChannelMixer mixer = new ChannelMixer();
+        mixer.configure(6, 2);
+        int size = mixer.process(a, a.length);
+        // normalized by 1 / (1 + 2 * 0.707)
+        int[] left = { 6786, 0, 4798, 0, 4798, 0 };
+        int[] right = { 0, 6786, 4798, 0, 0, 4798 };
+        assertEquals(size, ChannelMixer.downmix(b, b.length, 6, left, right));
+        for (int i = 0; i < size / 2; i++) assertEquals(get(b, i), get(a, i));
+    }
+
+    @Test
+    public void saturatesInsteadOfWrapping() {
+        // gains adding up to more than 1, the mixer tables never do
+        int[] left = { 16384, 0, 11585 };
+        int[] right = { 0, 16384, 11585 };
+        byte[] pcm = new byte[6];
+        put(pcm, 32767, 0);
+        put(pcm, -32768, 1);
+        put(pcm, 32767, 2);
+        ChannelMixer.downmix(pcm, 6, 3, left, right);
+        assertEquals(32767, get(pcm, 0));
+        assertEquals(-9599, get(pcm, 1), 1);
+    }
+
+    @Test
+    public void passthroughLeavesPcmAlone() {
+        ChannelMixer mixer = new ChannelMixer();
+        mixer.configure(6, 6);
+        byte[] pcm = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+        assertEquals(12, mixer.process(pcm, 12));
+        assertEquals(3, pcm[2]);
+    }
+
+    /**
+     * Downmix throughput, in audio seconds per CPU second, for the unrolled 5.1 and the generic 7.1 kernels
+     */
+    @Test
+    public void downmixThroughput() {
+        report(6);
+        report(8);
+    }
+
+    private static void report(int channels) {
+        int sampleRate = 48000;
+        // the render thread chunk size, rounded down to whole frames
+        int chunk = 4096 - 4096 % (2 * channels);
+        byte[] source = new byte[chunk];
+        for (int i = 0; i < chunk / 2; i++) put(source, (int) (10000 * Math.sin(i * 0.01)), i);
+        byte[] pcm = new byte[chunk];
+        ChannelMixer mixer = new ChannelMixer();
+        mixer.configure(channels, 2);
+
+        // warm up the JIT
+        for (int i = 0; i < 20000; i++) {
+            System.arraycopy(source, 0, pcm, 0, chunk);
+            mixer.process(pcm, chunk);
+        }
+
+        int iterations = 50000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            System.arraycopy(source, 0, pcm, 0, chunk);
+            mixer.process(pcm, chunk);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double audioSeconds = (double) iterations * (chunk / (2 * channels)) / sampleRate;
+        double realtime = audioSeconds / (elapsed / 1e9);
+        System.out.println(String.format("downmix %d ch -> 2 ch: %.0fx realtime, %.1f us per audio second",
+                channels, realtime, elapsed / 1e3 / audioSeconds));
+        assertTrue("downmix slower than realtime", realtime > 1);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commands come out in the order each sender sent them, wake up a parked consumer, and their
+ * latency is measured.
+ */
+public class CommandQueueTest {
+
+    @Test
+    public void pollsInSendingOrder() {
+        CommandQueue queue = new CommandQueue();
+        queue.offer(CommandQueue.SEEK, 1000);
+        queue.offer(CommandQueue.SEEK, 2000);
+        queue.offer(CommandQueue.STOP, 0);
+
+        assertEquals(1000, queue.poll().arg);
+        assertEquals(2000, queue.poll().arg);
+        assertEquals(CommandQueue.STOP, queue.poll().type);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        CommandQueue queue = new CommandQueue();
+        queue.offer(CommandQueue.SEEK, 1000);
+        queue.offer(CommandQueue.STOP, 0);
+        queue.clear();
+
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void keepsTheOrderOfEachSender() throws InterruptedException {
+        final CommandQueue queue = new CommandQueue();
+        final int senders = 4;
+        final int count = 20000;
+        Thread[] threads = new Thread[senders];
+        for (int i = 0; i < senders; i++) {
+            final int sender = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < count; n++) queue.offer(CommandQueue.SEEK, (long) sender * count + n);
+                }
+            });
+            threads[i].start();
+        }
+
+        long[] last = new long[senders];
+        for (int i = 0; i < senders; i++) last[i] = -1;
+        int received = 0;
+        long deadline = System.nanoTime() + 10000000000L;
+        while (received < senders * count && System.nanoTime() < deadline) {
+            CommandQueue.Command command = queue.poll();
+            if (command == null) continue;
+            int sender = (int) (command.arg / count);
+            long n = command.arg % count;
+            assertEquals(last[sender] + 1, n);
+            last[sender] = n;
+            received++;
+        }
+        for (Thread t : threads) t.join(5000);
+
+        assertEquals(senders * count, received);
+    }
+
+    @Test
+    public void offerWakesUpTheConsumer() throws InterruptedException {
+        final CommandQueue queue = new CommandQueue();
+        final CommandQueue.Command[] received = new CommandQueue.Command[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // parks for 10 s unless a command arrives
+                long deadline = System.nanoTime() + 10000000000L;
+                CommandQueue.Command command;
+                while ((command = queue.poll()) == null && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(deadline - System.nanoTime());
+                }
+                received[0] = command;
+            }
+        });
+        queue.setConsumer(consumer);
+        consumer.start();
+
+        Thread.sleep(50);
+        queue.offer(CommandQueue.STOP, 0);
+        consumer.join(5000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals(CommandQueue.STOP, received[0].type);
+    }
+
+    @Test
+    public void measuresTheLatency() throws InterruptedException {
+        CommandQueue queue = new CommandQueue();
+        queue.offer(CommandQueue.SEEK, 1000);
+        Thread.sleep(20);
+        queue.onApplied(queue.poll());
+        long slow = queue.getLastLatencyUs();
+
+        queue.offer(CommandQueue.SEEK, 2000);
+        queue.onApplied(queue.poll());
+
+        assertTrue(slow >= 20000);
+        assertTrue(queue.getLastLatencyUs() < slow);
+        assertEquals(slow, queue.getMaxLatencyUs());
+    }
+}
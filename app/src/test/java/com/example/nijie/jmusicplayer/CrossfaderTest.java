@@ -0,0 +1,148 @@
+package com.example.nijie.jmusicplayer;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tracks that can't be mixed sample by sample are never faded into each other, the gain curves,
+ * the encoder delay trim of the incoming track, and aborted fades. The incoming PCM is fed directly,
+ * without a decoder.
+ */
+public class CrossfaderTest {
+    private static final int MONO_FRAME = 2;
+
+    private static TrackInfo track(int sampleRate, int channels) {
+        return new TrackInfo("audio/mp4a-latm", sampleRate, channels, 180000000L);
+    }
+
+    /**
+     * @return a crossfader mixing mono tracks, fading in an incoming track with the given encoder delay
+     */
+    private static Crossfader begin(long fadeFrames, int encoderDelay) {
+        TrackDecoder incoming = new TrackDecoder("incoming.m4a", null);
+        incoming.info = track(44100, 1);
+        incoming.encoderDelay = encoderDelay;
+        Crossfader crossfader = new Crossfader(new PcmBufferPool(4));
+        crossfader.begin(incoming, fadeFrames, MONO_FRAME);
+        return crossfader;
+    }
+
+    // 16 bit little endian mono PCM
+    private static ByteBuffer pcm(int... samples) {
+        ByteBuffer buf = ByteBuffer.allocate(samples.length * MONO_FRAME);
+        for (int sample : samples) {
+            buf.put((byte) sample);
+            buf.put((byte) (sample >> 8));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer constant(int frames, int sample) {
+        int[] samples = new int[frames];
+        for (int i = 0; i < frames; i++) samples[i] = sample;
+        return pcm(samples);
+    }
+
+    private static int sample(ByteBuffer buf, int frame) {
+        int i = buf.position() + frame * MONO_FRAME;
+        return (short) ((buf.get(i) & 0xff) | (buf.get(i + 1) << 8));
+    }
+
+    @Test
+    public void mixesOnlySameRateAndChannels() {
+        assertTrue(Crossfader.canMix(track(44100, 2), track(44100, 2)));
+        // both downmixed to a stereo AudioTrack, but their frames differ
+        assertFalse(Crossfader.canMix(track(44100, 6), track(44100, 2)));
+        assertFalse(Crossfader.canMix(track(44100, 2), track(48000, 2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedChannelCounts() {
+        TrackDecoder incoming = new TrackDecoder("incoming.m4a", null);
+        incoming.info = track(44100, 6);
+        new Crossfader(new PcmBufferPool(4)).start(incoming, 44100, track(44100, 2).getFrameSize());
+    }
+
+    @Test
+    public void fadesWithEqualPowerCurves() {
+        int frames = 1024;
+        Crossfader fadeOut = begin(frames, 0);
+        fadeOut.feed(constant(frames, 0), false);
+        ByteBuffer out = fadeOut.mix(constant(frames, 16384));
+        Crossfader fadeIn = begin(frames, 0);
+        fadeIn.feed(constant(frames, 16384), false);
+        ByteBuffer in = fadeIn.mix(constant(frames, 0));
+
+        assertEquals(frames * MONO_FRAME, out.remaining());
+        assertEquals(frames * MONO_FRAME, in.remaining());
+        for (int i = 0; i < frames; i++) {
+            double angle = Math.PI / 2 * i / frames;
+            assertEquals(16384 * Math.cos(angle), sample(out, i), 2);
+            assertEquals(16384 * Math.sin(angle), sample(in, i), 2);
+        }
+        // same power all along: -3 dB each half way
+        assertEquals(11585, sample(out, frames / 2), 2);
+        assertEquals(11585, sample(in, frames / 2), 2);
+    }
+
+    @Test
+    public void fadesOutAloneOnceTheIncomingTrackEnded() {
+        Crossfader crossfader = begin(4, 0);
+        crossfader.feed(constant(1, 16384), true);
+        ByteBuffer outgoing = constant(4, 16384);
+        ByteBuffer mixed = crossfader.mix(outgoing);
+
+        assertEquals(0, outgoing.remaining());
+        assertEquals(4 * MONO_FRAME, mixed.remaining());
+        assertEquals(16384 * Math.cos(Math.PI / 8), sample(mixed, 1), 2);
+        assertEquals(16384 * Math.cos(3 * Math.PI / 8), sample(mixed, 3), 2);
+    }
+
+    @Test
+    public void trimsTheIncomingEncoderDelay() {
+        Crossfader crossfader = begin(1, 3);
+        // the delay spans more than the first buffer
+        crossfader.feed(pcm(1000, 2000), false);
+        crossfader.feed(pcm(3000, 4000, 5000, 6000), false);
+        assertEquals(0, crossfader.getTrimBytes());
+
+        // the outgoing track ended, the fade in is complete after the first frame
+        ByteBuffer rest = crossfader.drain();
+        assertEquals(3 * MONO_FRAME, rest.remaining());
+        assertEquals(0, sample(rest, 0));
+        assertEquals(5000, sample(rest, 1), 1);
+        assertEquals(6000, sample(rest, 2), 1);
+    }
+
+    @Test
+    public void abortedFadeStopsMixingAndCompletesTheFadeIn() {
+        Crossfader crossfader = begin(1000, 0);
+        crossfader.feed(constant(4, 16384), false);
+        assertEquals(2 * MONO_FRAME, crossfader.mix(constant(2, 0)).remaining());
+
+        crossfader.abort(null);
+        assertTrue(crossfader.isAborted());
+        assertNull(crossfader.getChangedFormat());
+        ByteBuffer outgoing = constant(2, 0);
+        assertEquals(0, crossfader.mix(outgoing).remaining());
+        assertEquals(2 * MONO_FRAME, outgoing.remaining());
+
+        // the 2 frames left finish the fade in instead of the 998 planned
+        ByteBuffer rest = crossfader.drain();
+        assertEquals(2 * MONO_FRAME, rest.remaining());
+        assertEquals(16384 * Math.sin(Math.PI / 4), sample(rest, 0), 2);
+        assertEquals(16384 * Math.sin(3 * Math.PI / 8), sample(rest, 1), 2);
+
+        TrackDecoder incoming = crossfader.getIncoming();
+        assertSame(incoming, crossfader.finish());
+        assertFalse(crossfader.isActive());
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.nijie.jmusicplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wrap around, collapsing of repeated events and the dump format.
+ */
+public class EventLogTest {
+
+    @Test
+    public void keepsTheLastEntries() {
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 10; i++) log.log(EventLog.SEEK, i);
+
+        assertEquals(4, log.size());
+        String[] lines = log.dump().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith("seek targetUs=6"));
+        assertTrue(lines[3].endsWith("seek targetUs=9"));
+    }
+
+    @Test
+    public void countsRepeatedEventsInOneEntry() {
+        EventLog log = new EventLog(4);
+        log.log(EventLog.OUTPUT_FORMAT_CHANGED, 48000, 2);
+        for (int i = 0; i < 1000; i++) log.log(EventLog.IDLE_PASS);
+        log.log(EventLog.OUTPUT_UNKNOWN, -1000);
+
+        assertEquals(3, log.size());
+        String[] lines = log.dump().split("\n");
+        assertTrue(lines[0].endsWith("outputFormatChanged sampleRate=48000 channels=2"));
+        assertTrue(lines[1].endsWith("idlePass (x1000)"));
+        assertTrue(lines[2].endsWith("outputUnknown result=-1000"));
+    }
+
+    @Test
+    public void clearEmptiesTheLog() {
+        EventLog log = new EventLog(4);
+        log.log(EventLog.CODEC_ERROR);
+        log.clear();
+
+        assertEquals(0, log.size());
+        assertEquals("", log.dump());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityNotAPowerOf2() {
+        new EventLog(100);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.nijie.jmusicplayer;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the PCM copy path does not allocate once the pool is warmed up.
+ */
+public class PcmBufferPoolTest {
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Same work as the decode loops do for every output buffer: acquire, fill, release
+     */
+    private static void decodeBuffers(PcmBufferPool pool, byte[] pcm, int count) {
+        for (int i = 0; i < count; i++) {
+            int size = pcm.length - (i % 7) * 64;   // codecs don't always return full buffers
+            byte[] chunk = pool.acquire(size);
+            System.arraycopy(pcm, 0, chunk, 0, size);
+            pool.release(chunk);
+        }
+    }
+
+    @Test
+    public void reusesBuffers() {
+        PcmBufferPool pool = new PcmBufferPool(4);
+        byte[] a = pool.acquire(1000);
+        pool.release(a);
+        byte[] b = pool.acquire(800);
+        assertTrue(a == b);
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void noAllocationPerBufferAfterWarmUp() {
+        PcmBufferPool pool = new PcmBufferPool(4);
+        // 1152 samples per MP3 frame, stereo, 16 bit
+        byte[] pcm = new byte[1152 * 2 * 2];
+
+        // warm up the pool and the allocation counter itself
+        decodeBuffers(pool, pcm, 1000);
+        long t0 = allocatedBytes();
+        long overhead = allocatedBytes() - t0;
+
+        long before = allocatedBytes();
+        decodeBuffers(pool, pcm, 100000);
+        long after = allocatedBytes();
+
+        assertEquals("bytes allocated by 100000 decoded buffers", 0, after - before - overhead);
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.nijie.jmusicplayer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wrap around, watermark wakeups, markers, holdback and flushes of the ring, and one producer and
+ * one consumer thread going through it at full speed.
+ */
+public class PcmRingBufferTest {
+    private static final int FRAME_SIZE = 4;
+
+    /**
+     * @return size bytes counting up from first
+     */
+    private static ByteBuffer bytes(int first, int size) {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) buf.put((byte) (first + i));
+        buf.flip();
+        return buf;
+    }
+
+    private static void assertBytes(byte[] dst, int first, int size) {
+        for (int i = 0; i < size; i++) assertEquals((byte) (first + i), dst[i]);
+    }
+
+    @Test
+    public void wrapsAround() {
+        PcmRingBuffer ring = new PcmRingBuffer(16, FRAME_SIZE, 4, 16);
+        byte[] dst = new byte[16];
+
+        assertEquals(12, ring.write(bytes(0, 12)));
+        assertEquals(8, ring.read(dst, 0, 8));
+        assertBytes(dst, 0, 8);
+
+        // 4 bytes up to the end of the array, 4 from its start
+        assertEquals(8, ring.write(bytes(12, 8)));
+        assertEquals(12, ring.getFillLevel());
+        assertEquals(12, ring.read(dst, 0, 16));
+        assertBytes(dst, 8, 12);
+        assertEquals(0, ring.getFillLevel());
+    }
+
+    @Test
+    public void writesOnlyWhatFits() {
+        PcmRingBuffer ring = new PcmRingBuffer(16, FRAME_SIZE, 4, 16);
+        ByteBuffer src = bytes(0, 24);
+
+        assertEquals(16, ring.write(src));
+        assertEquals(8, src.remaining());
+        assertEquals(0, ring.write(src));
+    }
+
+    @Test
+    public void readsWholeFrames() {
+        PcmRingBuffer ring = new PcmRingBuffer(16, FRAME_SIZE, 4, 16);
+        byte[] dst = new byte[16];
+
+        ring.write(bytes(0, 6));
+        assertEquals(4, ring.read(dst, 0, 16));
+        assertEquals(0, ring.read(dst, 0, 16));
+        ring.write(bytes(6, 2));
+        assertEquals(4, ring.read(dst, 0, 16));
+        assertBytes(dst, 4, 4);
+    }
+
+    @Test
+    public void runsTheListenerWhenCrossingTheLowWatermark() {
+        PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        final AtomicInteger crossings = new AtomicInteger(0);
+        ring.setLowWatermarkListener(new Runnable() {
+            @Override
+            public void run() {
+                crossings.incrementAndGet();
+            }
+        });
+        byte[] dst = new byte[8];
+
+        ring.write(bytes(0, 24));
+        assertTrue(ring.isAboveHighWatermark());
+        ring.read(dst, 0, 8);
+        assertEquals(0, crossings.get());
+        ring.read(dst, 0, 8);
+        assertEquals(1, crossings.get());
+        // already below, not crossing it again
+        ring.read(dst, 0, 8);
+        assertEquals(1, crossings.get());
+        assertFalse(ring.isAboveLowWatermark());
+    }
+
+    @Test
+    public void wakesUpTheProducerAtTheLowWatermark() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        ring.write(bytes(0, 24));
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ring.awaitLowWatermark(10000000);
+            }
+        });
+        producer.start();
+        byte[] dst = new byte[16];
+
+        // give it time to park, it waits for 10 s unless woken up
+        Thread.sleep(50);
+        ring.read(dst, 0, 16);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+    }
+
+    @Test
+    public void wakesUpTheConsumerAboveTheLowWatermark() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ring.awaitData(10000000);
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(50);
+        ring.write(bytes(0, 12));
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+    }
+
+    @Test
+    public void stopsReadsAtMarkers() {
+        PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        Object marker = new Object();
+        byte[] dst = new byte[32];
+
+        ring.write(bytes(0, 8));
+        assertTrue(ring.addMarker(marker, FRAME_SIZE));
+        ring.write(bytes(8, 8));
+
+        assertNull(ring.pollMarker());
+        assertEquals(8, ring.read(dst, 0, 32));
+        assertEquals(0, ring.read(dst, 0, 32));
+        assertSame(marker, ring.pollMarker());
+        assertNull(ring.pollMarker());
+        assertEquals(8, ring.read(dst, 0, 32));
+        assertBytes(dst, 8, 8);
+    }
+
+    @Test
+    public void refusesMarkersOverTheLimit() {
+        PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        int added = 0;
+        while (ring.addMarker(new Object(), FRAME_SIZE)) added++;
+
+        assertEquals(8, added);
+        ring.pollMarker();
+        assertTrue(ring.addMarker(new Object(), FRAME_SIZE));
+    }
+
+    @Test
+    public void holdsBackTheEndOfTheData() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, 32, 48);
+
+        // at most half the low watermark
+        assertEquals(4, ring.setHoldback(10, FRAME_SIZE));
+        ring.write(bytes(0, 24));
+        assertEquals(8, ring.getFillLevel());
+
+        // more data: what was held back becomes readable, the new end is held back
+        ring.write(bytes(24, 8));
+        assertEquals(16, ring.getFillLevel());
+
+        // end of the track: the padding is dropped, what is written next follows the readable data
+        ring.dropHoldback();
+        ring.write(bytes(100, 8));
+        assertEquals(24, ring.getFillLevel());
+        byte[] dst = new byte[32];
+        assertEquals(24, ring.read(dst, 0, 32));
+        assertBytes(dst, 0, 16);
+        assertEquals((byte) 100, dst[16]);
+    }
+
+    @Test
+    public void markerReleasesTheHoldback() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, 32, 48);
+        ring.setHoldback(2, FRAME_SIZE);
+        ring.write(bytes(0, 16));
+        assertEquals(8, ring.getFillLevel());
+
+        ring.addMarker(new Object(), FRAME_SIZE);
+        assertEquals(16, ring.getFillLevel());
+    }
+
+    @Test
+    public void neverReadsPastAPendingFlush() {
+        PcmRingBuffer ring = new PcmRingBuffer(32, FRAME_SIZE, 8, 24);
+        byte[] dst = new byte[32];
+
+        ring.write(bytes(0, 8));
+        ring.flush();
+        ring.write(bytes(100, 8));
+        assertTrue(ring.isFlushPending());
+
+        // the stale data may still go out, never the data written after the flush along with it
+        int stale = ring.read(dst, 0, 32);
+        assertTrue(stale <= 8);
+        assertBytes(dst, 0, stale);
+        assertEquals(0, ring.read(dst, 0, 32));
+
+        assertTrue(ring.consumeFlush());
+        assertFalse(ring.isFlushPending());
+        assertFalse(ring.consumeFlush());
+        assertEquals(8, ring.read(dst, 0, 32));
+        assertBytes(dst, 100, 8);
+    }
+
+    @Test
+    public void flushDropsTheHoldback() {
+        PcmRingBuffer ring = new PcmRingBuffer(64, FRAME_SIZE, 32, 48);
+        ring.setHoldback(2, FRAME_SIZE);
+        ring.write(bytes(0, 16));
+        ring.flush();
+        ring.consumeFlush();
+
+        assertEquals(0, ring.getFillLevel());
+        assertFalse(ring.isAboveHighWatermark());
+    }
+
+    @Test
+    public void oneProducerOneConsumer() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024, FRAME_SIZE, 256, 768);
+        final int frames = 500000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(37 * FRAME_SIZE);
+                int next = 0;
+                while (next < frames) {
+                    buf.clear();
+                    while (buf.hasRemaining() && next < frames) buf.putInt(next++);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        if (ring.write(buf) == 0) ring.awaitSpace(buf.remaining(), 1000);
+                    }
+                }
+                ring.setEndOfStream();
+            }
+        });
+        producer.start();
+
+        byte[] dst = new byte[100 * FRAME_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(dst);
+        int expected = 0;
+        while (!ring.isDrained()) {
+            int len = ring.read(dst, 0, dst.length);
+            if (len == 0) {
+                ring.awaitData(1000);
+                continue;
+            }
+            assertEquals(0, len % FRAME_SIZE);
+            for (int i = 0; i < len; i += FRAME_SIZE) assertEquals(expected++, view.getInt(i));
+        }
+        producer.join(5000);
+
+        assertEquals(frames, expected);
+        assertFalse(producer.isAlive());
+    }
+}
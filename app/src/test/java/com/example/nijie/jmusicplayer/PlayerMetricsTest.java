@@ -0,0 +1,116 @@
+package com.example.nijie.jmusicplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Histogram buckets and percentiles, counters, and decode times matched by timestamp.
+ */
+public class PlayerMetricsTest {
+
+    @Test
+    public void bucketLimitsAreInclusive() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.record(PlayerMetrics.WRITE_TIME, 0);
+        metrics.record(PlayerMetrics.WRITE_TIME, 50);
+        metrics.record(PlayerMetrics.WRITE_TIME, 51);
+        metrics.record(PlayerMetrics.WRITE_TIME, 100000);
+        metrics.record(PlayerMetrics.WRITE_TIME, 100001);
+        PlayerMetrics.Snapshot s = metrics.snapshot();
+
+        int last = PlayerMetrics.BUCKET_COUNT - 1;
+        assertEquals(2, s.getBucketCount(PlayerMetrics.WRITE_TIME, 0));
+        assertEquals(1, s.getBucketCount(PlayerMetrics.WRITE_TIME, 1));
+        assertEquals(1, s.getBucketCount(PlayerMetrics.WRITE_TIME, last - 1));
+        assertEquals(1, s.getBucketCount(PlayerMetrics.WRITE_TIME, last));
+        assertEquals(5, s.getCount(PlayerMetrics.WRITE_TIME));
+        assertEquals(50, PlayerMetrics.Snapshot.getBucketLimitUs(0));
+        assertEquals(100000, PlayerMetrics.Snapshot.getBucketLimitUs(last - 1));
+        assertEquals(Long.MAX_VALUE, PlayerMetrics.Snapshot.getBucketLimitUs(last));
+    }
+
+    @Test
+    public void histogramsAreSeparate() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.record(PlayerMetrics.DECODE_TIME, 300);
+        PlayerMetrics.Snapshot s = metrics.snapshot();
+
+        assertEquals(1, s.getCount(PlayerMetrics.DECODE_TIME));
+        assertEquals(0, s.getCount(PlayerMetrics.WRITE_TIME));
+        assertEquals(0, s.getCount(PlayerMetrics.COMMAND_LATENCY));
+    }
+
+    @Test
+    public void percentilesAreBucketLimits() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        for (int i = 0; i < 98; i++) metrics.record(PlayerMetrics.COMMAND_LATENCY, 150);
+        metrics.record(PlayerMetrics.COMMAND_LATENCY, 4000);
+        metrics.record(PlayerMetrics.COMMAND_LATENCY, 300000);
+        PlayerMetrics.Snapshot s = metrics.snapshot();
+
+        assertEquals(200, s.getPercentileUs(PlayerMetrics.COMMAND_LATENCY, 50));
+        assertEquals(200, s.getPercentileUs(PlayerMetrics.COMMAND_LATENCY, 98));
+        assertEquals(5000, s.getPercentileUs(PlayerMetrics.COMMAND_LATENCY, 99));
+        assertEquals(Long.MAX_VALUE, s.getPercentileUs(PlayerMetrics.COMMAND_LATENCY, 100));
+        assertEquals((98 * 150 + 4000 + 300000) / 100, s.getMeanUs(PlayerMetrics.COMMAND_LATENCY));
+    }
+
+    @Test
+    public void emptyHistogram() {
+        PlayerMetrics.Snapshot s = new PlayerMetrics().snapshot();
+
+        assertEquals(0, s.getPercentileUs(PlayerMetrics.DECODE_TIME, 99));
+        assertEquals(0, s.getMeanUs(PlayerMetrics.DECODE_TIME));
+    }
+
+    @Test
+    public void countsAndSnapshotsDontMove() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.increment(PlayerMetrics.UNDERRUNS);
+        metrics.add(PlayerMetrics.BYTES_RENDERED, 4096);
+        metrics.add(PlayerMetrics.BYTES_RENDERED, 4096);
+        PlayerMetrics.Snapshot s = metrics.snapshot();
+        metrics.increment(PlayerMetrics.UNDERRUNS);
+
+        assertEquals(1, s.getCounter(PlayerMetrics.UNDERRUNS));
+        assertEquals(8192, s.getCounter(PlayerMetrics.BYTES_RENDERED));
+        assertEquals(2, metrics.snapshot().getCounter(PlayerMetrics.UNDERRUNS));
+    }
+
+    @Test
+    public void timesDecodingByTimestamp() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.onInputQueued(0);
+        metrics.onInputQueued(23220);
+        metrics.onOutputDecoded(23220);
+        metrics.onOutputDecoded(0);
+        // no input with that timestamp, or already matched
+        metrics.onOutputDecoded(46440);
+        metrics.onOutputDecoded(0);
+        PlayerMetrics.Snapshot s = metrics.snapshot();
+
+        assertEquals(4, s.getCounter(PlayerMetrics.BUFFERS_DECODED));
+        assertEquals(2, s.getCount(PlayerMetrics.DECODE_TIME));
+    }
+
+    @Test
+    public void flushForgetsQueuedInputs() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.onInputQueued(0);
+        metrics.clearInputs();
+        metrics.onOutputDecoded(0);
+
+        assertEquals(0, metrics.snapshot().getCount(PlayerMetrics.DECODE_TIME));
+    }
+
+    @Test
+    public void printsPercentiles() {
+        PlayerMetrics metrics = new PlayerMetrics();
+        metrics.record(PlayerMetrics.WRITE_TIME, 700);
+        String text = metrics.snapshot().toString();
+
+        assertTrue(text.contains("writeTime(n=1 mean=700us p50<=1000us p99<=1000us)"));
+    }
+}
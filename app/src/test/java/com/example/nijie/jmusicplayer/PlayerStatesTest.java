@@ -0,0 +1,163 @@
+package com.example.nijie.jmusicplayer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allowed and refused transitions, racing starts, and threads parked while paused.
+ */
+public class PlayerStatesTest {
+
+    /**
+     * @return a thread parked in awaitNotPaused without a timeout, once it had time to park
+     */
+    private static Thread parkWhilePaused(final PlayerStates state) throws InterruptedException {
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                state.awaitNotPaused();
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        return waiter;
+    }
+
+    private static PlayerStates paused() {
+        PlayerStates state = new PlayerStates();
+        state.startPreparing();
+        state.transition(PlayerStates.PREPARING, PlayerStates.BUFFERING);
+        state.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING);
+        state.pause();
+        return state;
+    }
+
+    @Test
+    public void goesThroughAPlayback() {
+        PlayerStates state = new PlayerStates();
+        assertTrue(state.isStopped());
+
+        assertTrue(state.startPreparing());
+        assertTrue(state.transition(PlayerStates.PREPARING, PlayerStates.BUFFERING));
+        assertTrue(state.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING));
+        assertTrue(state.isPlaying());
+        assertTrue(state.transition(PlayerStates.PLAYING, PlayerStates.SEEKING));
+        assertTrue(state.transition(PlayerStates.SEEKING, PlayerStates.BUFFERING));
+        assertTrue(state.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING));
+        assertTrue(state.pause());
+        assertTrue(state.isPaused());
+        assertTrue(state.resume());
+        assertEquals(PlayerStates.BUFFERING, state.get());
+        assertTrue(state.moveTo(PlayerStates.STOPPED));
+        assertTrue(state.isStopped());
+    }
+
+    @Test
+    public void refusesTransitionsNotAllowed() {
+        assertFalse(PlayerStates.isAllowed(PlayerStates.STOPPED, PlayerStates.PLAYING));
+        assertFalse(PlayerStates.isAllowed(PlayerStates.SEEKING, PlayerStates.PLAYING));
+        assertFalse(PlayerStates.isAllowed(PlayerStates.PAUSED, PlayerStates.SEEKING));
+        assertFalse(PlayerStates.isAllowed(PlayerStates.STOPPED, PlayerStates.STOPPED));
+        assertFalse(PlayerStates.isAllowed(0, PlayerStates.PREPARING));
+
+        PlayerStates state = new PlayerStates();
+        assertFalse(state.moveTo(PlayerStates.PLAYING));
+        assertFalse(state.pause());
+        assertFalse(state.resume());
+        assertTrue(state.isStopped());
+    }
+
+    @Test
+    public void transitionFailsOnceTheStateChanged() {
+        PlayerStates state = paused();
+
+        // the renderer still thinks it is buffering
+        assertFalse(state.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING));
+        assertTrue(state.isPaused());
+    }
+
+    @Test
+    public void startsAgainAfterAnError() {
+        PlayerStates state = new PlayerStates();
+        state.startPreparing();
+        assertTrue(state.moveTo(PlayerStates.ERROR));
+
+        assertTrue(state.startPreparing());
+        assertFalse(state.startPreparing());
+    }
+
+    @Test
+    public void onlyOneOfRacingStartsPrepares() throws InterruptedException {
+        final PlayerStates state = new PlayerStates();
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger(0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (state.startPreparing()) started.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t : threads) t.join(5000);
+
+        assertEquals(1, started.get());
+        assertEquals(PlayerStates.PREPARING, state.get());
+    }
+
+    @Test
+    public void doesNotWaitWhenNotPaused() {
+        PlayerStates state = new PlayerStates();
+        long start = System.nanoTime();
+        state.awaitNotPaused();
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+    }
+
+    @Test
+    public void resumeWakesUpAPausedThread() throws InterruptedException {
+        PlayerStates state = paused();
+        Thread waiter = parkWhilePaused(state);
+        assertTrue(waiter.isAlive());
+
+        state.resume();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void stopWakesUpAPausedThread() throws InterruptedException {
+        PlayerStates state = paused();
+        Thread waiter = parkWhilePaused(state);
+
+        state.moveTo(PlayerStates.STOPPED);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void moreWaitersThanSlotsAllReturn() throws InterruptedException {
+        PlayerStates state = paused();
+        Thread[] waiters = new Thread[6];
+        for (int i = 0; i < waiters.length; i++) waiters[i] = parkWhilePaused(state);
+
+        state.resume();
+        for (Thread t : waiters) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+    }
+}
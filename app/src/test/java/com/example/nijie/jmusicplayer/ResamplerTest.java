@@ -0,0 +1,117 @@
+package com.example.nijie.jmusicplayer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resampler accuracy, and a benchmark of its CPU cost at each quality level.
+ */
+public class ResamplerTest {
+    private static final int BLOCK = 1024;
+
+    /**
+     * Resample a stereo sine block by block, the output is checked against the same sine at the output rate
+     * @return largest error
+     */
+    private static double sineError(int inRate, int outRate, int quality, double frequency) {
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, outRate, 2, quality, BLOCK);
+        float[] in = new float[2 * BLOCK];
+        float[] out = new float[2 * resampler.getMaxOutputFrames(BLOCK)];
+
+        double maxError = 0;
+        int inFrame = 0, outFrame = 0;
+        for (int block = 0; block < 20; block++) {
+            for (int i = 0; i < BLOCK; i++, inFrame++) {
+                float s = (float) (0.5 * Math.sin(2 * Math.PI * frequency * inFrame / inRate));
+                in[2 * i] = s;
+                in[2 * i + 1] = -s;
+            }
+            int frames = resampler.process(in, BLOCK, out);
+            for (int i = 0; i < frames; i++, outFrame++) {
+                // the first frames are filtered with the silence before the start
+                if (outFrame < 64) continue;
+                double expected = 0.5 * Math.sin(2 * Math.PI * frequency * outFrame / outRate);
+                maxError = Math.max(maxError, Math.abs(out[2 * i] - expected));
+                maxError = Math.max(maxError, Math.abs(out[2 * i + 1] + expected));
+            }
+        }
+        // output frames follow input frames at the conversion ratio, half a filter behind
+        assertEquals((double) inFrame * outRate / inRate, outFrame, 64);
+        return maxError;
+    }
+
+    @Test
+    public void upsamplesSine() {
+        assertTrue(sineError(44100, 48000, Resampler.QUALITY_LOW, 1000) < 2e-3);
+        assertTrue(sineError(44100, 48000, Resampler.QUALITY_HIGH, 1000) < 1e-4);
+        assertTrue(sineError(22050, 48000, Resampler.QUALITY_MEDIUM, 5000) < 1e-3);
+    }
+
+    @Test
+    public void downsamplesSine() {
+        assertTrue(sineError(48000, 44100, Resampler.QUALITY_HIGH, 1000) < 1e-4);
+        assertTrue(sineError(96000, 48000, Resampler.QUALITY_MEDIUM, 3000) < 1e-3);
+    }
+
+    @Test
+    public void keepsMonoDcLevel() {
+        Resampler resampler = new Resampler();
+        resampler.configure(44100, 48000, 1, Resampler.QUALITY_MEDIUM, BLOCK);
+        float[] in = new float[BLOCK];
+        Arrays.fill(in, 0.25f);
+        float[] out = new float[resampler.getMaxOutputFrames(BLOCK)];
+        resampler.process(in, BLOCK, out);
+        int frames = resampler.process(in, BLOCK, out);
+        for (int i = 0; i < frames; i++) assertEquals(0.25f, out[i], 1e-5f);
+    }
+
+    @Test
+    public void rejectsOddRatios() {
+        assertFalse(Resampler.isSupported(192000, 8000));
+        assertFalse(Resampler.isSupported(44101, 48000));
+        assertTrue(Resampler.isSupported(8000, 44100));
+    }
+
+    /**
+     * CPU time per second of stereo audio, 44.1 kHz to 48 kHz, at each quality level
+     */
+    @Test
+    public void resampleCost() {
+        report(Resampler.QUALITY_LOW, "low");
+        report(Resampler.QUALITY_MEDIUM, "medium");
+        report(Resampler.QUALITY_HIGH, "high");
+    }
+
+    private static void report(int quality, String name) {
+        int inRate = 44100;
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, 48000, 2, quality, BLOCK);
+        float[] in = new float[2 * BLOCK];
+        for (int i = 0; i < in.length; i++) in[i] = (float) (0.5 * Math.sin(i * 0.01));
+        float[] out = new float[2 * resampler.getMaxOutputFrames(BLOCK)];
+
+        // warm up the JIT
+        for (int i = 0; i < 2000; i++) resampler.process(in, BLOCK, out);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        int iterations = 5000;
+        long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        for (int i = 0; i < iterations; i++) resampler.process(in, BLOCK, out);
+        long elapsed = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+
+        double audioSeconds = (double) iterations * BLOCK / inRate;
+        double usPerSecond = elapsed / 1e3 / audioSeconds;
+        System.out.println(String.format("resample 44100 -> 48000 Hz stereo, %s quality: %.1f us CPU per audio second (%.0fx realtime)",
+                name, usPerSecond, 1e6 / usPerSecond));
+        assertTrue("resampling slower than realtime", usPerSecond < 1e6);
+    }
+}